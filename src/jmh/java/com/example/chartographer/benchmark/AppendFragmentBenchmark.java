@@ -0,0 +1,52 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.image.Charta;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving the sample fragments into chartas of different sizes, preview levels included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendFragmentBenchmark {
+
+    @Param({"2000x2000", "20000x50000"})
+    public String chartaSize;
+
+    @Param({"green_pixel.bmp", "FLAG_B24.BMP", "non-zero-padding.bmp", "sample_1280x853.bmp"})
+    public String fixtureName;
+
+    private BenchmarkContext context;
+    private BenchmarkContext.Fixture fixture;
+    private Charta charta;
+    private int step;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        int[] size = BenchmarkContext.size(chartaSize);
+        charta = context.createCharta(size[0], size[1]);
+        fixture = BenchmarkContext.fixture(fixtureName);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public boolean appendToImage() throws IOException {
+        // walk the charta diagonally, so the pages touched are not always the same
+        int x = (step * 97) % (charta.getWidth() - fixture.width + 1);
+        int y = (step * 89) % (charta.getHeight() - fixture.height + 1);
+        step++;
+        return context.append(charta, fixture, x, y);
+    }
+}
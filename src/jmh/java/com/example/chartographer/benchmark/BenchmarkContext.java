@@ -0,0 +1,89 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.ChartographerApplication;
+import com.example.chartographer.config.ChartaIdAllocator;
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ImageUtilsService;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The application without its web layer, working in a temporary directory removed on close.
+ */
+class BenchmarkContext implements AutoCloseable {
+    private static final Path SAMPLES = Path.of(System.getProperty("chartographer.samples", "bmp_samples"));
+
+    private final Path workDir;
+    private final ConfigurableApplicationContext context;
+
+    BenchmarkContext() throws IOException {
+        workDir = Files.createTempDirectory("chartographer-benchmark");
+        context = new SpringApplicationBuilder(ChartographerApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.main.banner-mode=off", "logging.level.root=warn")
+                .run(workDir.toString());
+    }
+
+    ImageUtilsService imageUtils() {
+        return context.getBean(ImageUtilsService.class);
+    }
+
+    Charta createCharta(int width, int height) throws IOException {
+        Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), width, height);
+        imageUtils().createChartaImage(c);
+        return c;
+    }
+
+    /**
+     * Saves the fixture at (x, y) of the charta and returns whether it was accepted.
+     */
+    boolean append(Charta c, Fixture fixture, int x, int y) throws IOException {
+        return imageUtils().appendToImage(c, new ByteArrayInputStream(fixture.bytes), c.getId(), x, y,
+                fixture.width, fixture.height);
+    }
+
+    static Fixture fixture(String name) throws IOException {
+        return new Fixture(Files.readAllBytes(SAMPLES.resolve(name)));
+    }
+
+    /**
+     * Parses "{width}x{height}" benchmark parameters.
+     */
+    static int[] size(String param) {
+        String[] values = param.split("x");
+        return new int[]{Integer.parseInt(values[0]), Integer.parseInt(values[1])};
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    static final class Fixture {
+        final byte[] bytes;
+        final int width;
+        final int height;
+
+        private Fixture(byte[] bytes) {
+            ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            this.bytes = bytes;
+            this.width = header.getInt(18);
+            this.height = header.getInt(22);
+        }
+    }
+}
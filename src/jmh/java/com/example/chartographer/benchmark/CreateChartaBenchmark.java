@@ -0,0 +1,51 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.image.Charta;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating the empty charta image, i.e. the BMP file and its preview levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateChartaBenchmark {
+
+    @Param({"100x100", "1000x1000", "5000x5000", "20000x50000"})
+    public String size;
+
+    private BenchmarkContext context;
+    private int width;
+    private int height;
+    private Charta created;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        int[] dimensions = BenchmarkContext.size(size);
+        width = dimensions[0];
+        height = dimensions[1];
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCreated() {
+        context.imageUtils().deleteCharta(created.getId());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public Charta createChartaImage() throws IOException {
+        created = context.createCharta(width, height);
+        return created;
+    }
+}
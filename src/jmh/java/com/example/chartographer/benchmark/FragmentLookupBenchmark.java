@@ -0,0 +1,54 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ImagePiece;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Charta#hasFragmentInArea} on a max-size charta holding randomly placed pieces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FragmentLookupBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int pieces;
+
+    @Param({"1x1", "124x124", "5000x5000"})
+    public String areaSize;
+
+    private Charta charta;
+    private int[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        charta = new Charta(1, Charta.MAX_WIDTH, Charta.MAX_HEIGHT);
+        for (int i = 0; i < pieces; i++) {
+            int width = 1 + random.nextInt(500);
+            int height = 1 + random.nextInt(500);
+            charta.addPiece(new ImagePiece(width, height,
+                    random.nextInt(Charta.MAX_WIDTH - width), random.nextInt(Charta.MAX_HEIGHT - height)));
+        }
+        int[] size = BenchmarkContext.size(areaSize);
+        queries = new int[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = new int[]{random.nextInt(Charta.MAX_WIDTH), random.nextInt(Charta.MAX_HEIGHT), size[0], size[1]};
+        }
+    }
+
+    @Benchmark
+    public boolean hasFragmentInArea() {
+        int[] query = queries[next++ & (QUERIES - 1)];
+        return charta.hasFragmentInArea(query[0], query[1], query[2], query[3]);
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.chartographer.benchmark;
+
+import com.example.chartographer.image.Charta;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading fragments lying inside the charta and fragments hanging over its bottom right corner,
+ * which are partly filled with black.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadFragmentBenchmark {
+
+    @Param({"5000x5000", "20000x50000"})
+    public String chartaSize;
+
+    @Param({"1x1", "124x124", "1280x853", "5000x5000"})
+    public String fragmentSize;
+
+    private BenchmarkContext context;
+    private Charta charta;
+    private int width;
+    private int height;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        int[] size = BenchmarkContext.size(chartaSize);
+        charta = context.createCharta(size[0], size[1]);
+        BenchmarkContext.Fixture sample = BenchmarkContext.fixture("sample_1280x853.bmp");
+        // fill the whole charta, reads of an empty sparse file would never touch the disk
+        for (int y = 0; y + sample.height <= charta.getHeight(); y += sample.height) {
+            for (int x = 0; x + sample.width <= charta.getWidth(); x += sample.width) {
+                context.append(charta, sample, x, y);
+            }
+        }
+        int[] fragment = BenchmarkContext.size(fragmentSize);
+        width = fragment[0];
+        height = fragment[1];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public void inBounds() throws IOException {
+        context.imageUtils().readFragment(charta, 0, 0, width, height, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void outOfBounds() throws IOException {
+        context.imageUtils().readFragment(charta, charta.getWidth() - width / 2, charta.getHeight() - height / 2,
+                width, height, OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.chartographer.config;
+
+import com.google.gson.Gson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out charta ids without locking. Ids are reserved in blocks written to {@code options.json} before
+ * any id of the block is used, so a crash skips the rest of a block but never reuses an id,
+ * and only one create per block waits for the disk. A clean shutdown stores the last id used.
+ */
+@Component
+public class ChartaIdAllocator {
+    private static final String OPTIONS_FILE = "options.json";
+
+    private final AtomicLong lastId = new AtomicLong();
+    private volatile long reservedUpTo;
+    private volatile boolean loaded;
+
+    @Autowired
+    private Gson gson;
+
+    @Value("${chartographer.ids.block-size:1000}")
+    private int blockSize;
+
+    /**
+     * Continues after the ids stored in the working directory.
+     */
+    public void load() {
+        StartOptions options = null;
+        try (Reader reader = Files.newBufferedReader(StartupRunner.workDirResolve(OPTIONS_FILE))) {
+            options = gson.fromJson(reader, StartOptions.class);
+        } catch (IOException | RuntimeException e) {
+            // first start in this directory
+        }
+        long stored = options == null ? 0 : options.getNextId();
+        lastId.set(stored);
+        reservedUpTo = stored;
+        loaded = true;
+    }
+
+    public int next() throws IOException {
+        long id = lastId.incrementAndGet();
+        if (id > reservedUpTo) {
+            reserve(id);
+        }
+        return Math.toIntExact(id);
+    }
+
+    /**
+     * Makes sure ids up to {@code id} are never handed out, e.g. ones found in the journal.
+     */
+    public void advanceTo(long id) {
+        lastId.accumulateAndGet(id, Math::max);
+    }
+
+    public long getLastId() {
+        return lastId.get();
+    }
+
+    @PreDestroy
+    private void onShutdown() {
+        if (!loaded) {
+            return;
+        }
+        try {
+            save(lastId.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void reserve(long id) throws IOException {
+        if (id <= reservedUpTo) {
+            return;
+        }
+        long limit = Math.max(id, lastId.get()) + blockSize - 1;
+        save(limit);
+        reservedUpTo = limit;
+    }
+
+    /**
+     * Writes the options through to the disk, replacing the old file atomically.
+     */
+    private synchronized void save(long nextId) throws IOException {
+        StartOptions options = new StartOptions();
+        options.setNextId(Math.toIntExact(Math.min(nextId, Integer.MAX_VALUE)));
+        Path target = StartupRunner.workDirResolve(OPTIONS_FILE);
+        Path tmp = target.resolveSibling(OPTIONS_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(gson.toJson(options));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,15 +1,12 @@
 package com.example.chartographer.config;
 
-import com.example.chartographer.image.Charta;
-import com.google.gson.Gson;
+import com.example.chartographer.storage.ChartaJournal;
+import com.example.chartographer.storage.ChartaRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
@@ -18,9 +15,12 @@ import java.nio.file.Path;
 public class StartupRunner implements CommandLineRunner {
 
     private static Path pathToWorkingDirectory;
-    private static StartOptions startOptions;
     @Autowired
-    private Gson gson;
+    private ChartaIdAllocator idAllocator;
+    @Autowired
+    private ChartaRepository chartaRepository;
+    @Autowired
+    private ChartaJournal chartaJournal;
 
     public static Path getPathToWorkingDirectory() {
         return pathToWorkingDirectory;
@@ -36,10 +36,14 @@ public class StartupRunner implements CommandLineRunner {
             pathToWorkingDirectory = Path.of(System.getProperty("user.dir"));
             System.err.println("Unable to configure given path. Using app directory.");
         }
-        if (!loadStartOptions()) {
-            startOptions = new StartOptions();
+        idAllocator.load();
+        chartaRepository.load();
+        try {
+            chartaJournal.recover();
+        } catch (IOException e) {
+            System.err.println("Can't recover the journal, changes can't be saved until it is fixed.");
+            e.printStackTrace();
         }
-        Charta.setNextId(startOptions.getNextId());
     }
 
     private boolean initWorkingDirectory(String path) {
@@ -55,34 +59,4 @@ public class StartupRunner implements CommandLineRunner {
         }
         return false;
     }
-
-    private boolean loadStartOptions() {
-        try (Reader reader = Files.newBufferedReader(workDirResolve("options.json"))) {
-            StartOptions options = gson.fromJson(reader, StartOptions.class);
-            startOptions = options;
-            return options != null;
-        } catch (IOException e1) {
-            try (Writer writer = Files.newBufferedWriter(workDirResolve("options.json"))) {
-                gson.toJson(startOptions = new StartOptions(), writer);
-            } catch (IOException e2) {
-                System.err.println("Can't init options. Make sure the working directory is fully accessible.");
-                return false;
-            }
-        }
-        return true;
-    }
-
-    @PreDestroy
-    private void onShutdown() {
-        saveStartOptions();
-    }
-
-    private void saveStartOptions() {
-        try (Writer writer = Files.newBufferedWriter(workDirResolve("options.json"))) {
-            startOptions.setNextId(Charta.getNextId());
-            gson.toJson(startOptions, writer);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
 }
@@ -0,0 +1,92 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.config.StartupRunner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Default engine keeping every charta as a single 24-bit BMP file, accessed through cached memory mappings.
+ * Mappings are kept in a bounded {@link HandleCache}, so the BMP is mapped once while the charta is in use.
+ */
+@Component
+@ConditionalOnProperty(name = "chartographer.storage.engine", havingValue = "bmp", matchIfMissing = true)
+public class BmpChartaStorage implements ChartaStorage {
+
+    @Autowired
+    private ChartaHandles handles;
+
+    private HandleCache<MappedCharta> mappedChartas;
+
+    @PostConstruct
+    private void start() {
+        mappedChartas = handles.create(c -> new MappedCharta(bmpPath(c.getId()), c.getWidth(), c.getHeight(),
+                ImageUtilsService.BITMAP_FILE_HEADER_SIZE + ImageUtilsService.DIB_HEADER_SIZE,
+                ImageUtilsService.getRowStride(c.getWidth())));
+    }
+
+    @Override
+    public void create(Charta c) throws IOException {
+        createEmptyBMPfile(c.getWidth(), c.getHeight(), bmpPath(c.getId()));
+    }
+
+    @Override
+    public void writeRow(Charta c, int y, int x, ByteBuffer src) throws IOException {
+        try (HandleCache.Lease<MappedCharta> mapping = mappedChartas.acquire(c)) {
+            mapping.get().writeRow(y, x, src);
+        }
+    }
+
+    @Override
+    public void readRow(Charta c, int y, int x, ByteBuffer dst) throws IOException {
+        try (HandleCache.Lease<MappedCharta> mapping = mappedChartas.acquire(c)) {
+            mapping.get().readRow(y, x, dst);
+        }
+    }
+
+    @Override
+    public void force(Charta c) throws IOException {
+        try (HandleCache.Lease<MappedCharta> mapping = mappedChartas.acquire(c)) {
+            mapping.get().force();
+        }
+    }
+
+    @Override
+    public boolean exists(int id) {
+        return Files.exists(bmpPath(id));
+    }
+
+    @Override
+    public void delete(int id) throws IOException {
+        mappedChartas.invalidate(id);
+        Files.delete(bmpPath(id));
+    }
+
+    /**
+     * Writes the header and extends the file to its full size without touching the pixel array.
+     * The file stays sparse on file systems supporting holes, and unwritten pixels read as black.
+     */
+    private void createEmptyBMPfile(int width, int height, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ImageUtilsService.createHeader(width, height).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.write(ByteBuffer.allocate(1), ImageUtilsService.getBmpFileSize(width, height) - 1);
+            channel.force(true);
+        }
+    }
+
+    private Path bmpPath(int id) {
+        return StartupRunner.workDirResolve(id + ".bmp");
+    }
+}
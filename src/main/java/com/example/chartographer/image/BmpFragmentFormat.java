@@ -0,0 +1,199 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Uncompressed 24-bit and 32-bit BMPs, stored bottom-up or top-down (negative height).
+ * 24-bit rows are read straight into the row buffers, 32-bit rows are staged to drop the alpha byte.
+ */
+final class BmpFragmentFormat implements FragmentDecoder.Format {
+    private static final int PIXEL_OFFSET = 10;
+    private static final int DIB_HEADER = ImageUtilsService.BITMAP_FILE_HEADER_SIZE;
+    private static final int CORE_HEADER_SIZE = ImageUtilsService.DIB_MIN_HEADER_SIZE;
+    private static final int INFO_HEADER_SIZE = ImageUtilsService.DIB_HEADER_SIZE;
+    // BI_BITFIELDS masks follow a 40-byte header, larger headers hold them at the same offset
+    private static final int MASKS_SIZE = 12;
+    private static final int BI_RGB = 0;
+    private static final int BI_BITFIELDS = 3;
+    private static final int PIXEL_SIZE = 3;
+
+    private enum State {
+        HEADER, SKIP, ROWS, DONE
+    }
+
+    private final FragmentDecoder decoder;
+    private final int width;
+    private final int height;
+    private final byte[] header = new byte[DIB_HEADER + ImageUtilsService.DIB_MAX_HEADER_SIZE + MASKS_SIZE];
+    private int headerSize = DIB_HEADER + 4;
+    private int headerFill;
+    private State state = State.HEADER;
+    private long toSkip;
+    private boolean topDown;
+    private int padding;
+    private byte[] staged;
+    private int stagedFill;
+    private ByteBuffer rowBuffer;
+    private int row;
+
+    BmpFragmentFormat(FragmentDecoder decoder, int width, int height) {
+        this.decoder = decoder;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public boolean feed(ByteBuffer src) throws IOException {
+        while (src.hasRemaining() && state != State.DONE && !decoder.isStalled()) {
+            switch (state) {
+                case HEADER:
+                    if (!readHeader(src)) {
+                        return false;
+                    }
+                    break;
+                case SKIP:
+                    skip(src);
+                    if (toSkip == 0) {
+                        state = State.ROWS;
+                    }
+                    break;
+                default:
+                    if (toSkip > 0) {
+                        skip(src);
+                    } else if (staged == null) {
+                        readRow(src);
+                    } else {
+                        readStagedRow(src);
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    private boolean readHeader(ByteBuffer src) {
+        int n = Math.min(headerSize - headerFill, src.remaining());
+        src.get(header, headerFill, n);
+        headerFill += n;
+        if (headerFill < headerSize) {
+            return true;
+        }
+        ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int dibHeaderSize = h.getInt(DIB_HEADER);
+        if (headerSize == DIB_HEADER + 4) {
+            if (dibHeaderSize != CORE_HEADER_SIZE
+                    && (dibHeaderSize < INFO_HEADER_SIZE || dibHeaderSize > ImageUtilsService.DIB_MAX_HEADER_SIZE)) {
+                return false;
+            }
+            headerSize = DIB_HEADER + dibHeaderSize;
+            return true;
+        }
+
+        long bmpWidth;
+        long bmpHeight;
+        int bitCount;
+        int compression;
+        if (dibHeaderSize == CORE_HEADER_SIZE) {
+            bmpWidth = Short.toUnsignedInt(h.getShort(DIB_HEADER + 4));
+            bmpHeight = Short.toUnsignedInt(h.getShort(DIB_HEADER + 6));
+            bitCount = h.getShort(DIB_HEADER + 10);
+            compression = BI_RGB;
+        } else {
+            bmpWidth = h.getInt(DIB_HEADER + 4);
+            bmpHeight = h.getInt(DIB_HEADER + 8);
+            bitCount = h.getShort(DIB_HEADER + 14);
+            compression = h.getInt(DIB_HEADER + 16);
+        }
+        if (compression == BI_BITFIELDS && dibHeaderSize == INFO_HEADER_SIZE && headerSize == DIB_HEADER + INFO_HEADER_SIZE) {
+            headerSize += MASKS_SIZE;
+            return true;
+        }
+        topDown = bmpHeight < 0;
+        if (bmpWidth != width || Math.abs(bmpHeight) != height) {
+            return false;
+        }
+
+        if (bitCount == 24 && compression == BI_RGB) {
+            padding = ImageUtilsService.getPadding(width);
+        } else if (bitCount == 32 && (compression == BI_RGB || compression == BI_BITFIELDS && hasBgrMasks(h))) {
+            staged = new byte[width * 4];
+        } else {
+            return false;
+        }
+        // a color table may sit between the header and the pixels
+        toSkip = Math.max(0, Integer.toUnsignedLong(h.getInt(PIXEL_OFFSET)) - headerSize);
+        state = toSkip > 0 ? State.SKIP : State.ROWS;
+        return true;
+    }
+
+    private boolean hasBgrMasks(ByteBuffer h) {
+        int masks = DIB_HEADER + INFO_HEADER_SIZE;
+        return h.getInt(masks) == 0x00FF0000 && h.getInt(masks + 4) == 0x0000FF00 && h.getInt(masks + 8) == 0x000000FF;
+    }
+
+    private void skip(ByteBuffer src) {
+        int skipped = (int) Math.min(toSkip, src.remaining());
+        src.position(src.position() + skipped);
+        toSkip -= skipped;
+    }
+
+    private void readRow(ByteBuffer src) throws IOException {
+        if (rowBuffer == null) {
+            if (!decoder.canBeginRow()) {
+                return;
+            }
+            rowBuffer = decoder.beginRow();
+        }
+        int n = Math.min(rowBuffer.remaining(), src.remaining());
+        ByteBuffer piece = src.duplicate();
+        piece.limit(piece.position() + n);
+        rowBuffer.put(piece);
+        src.position(src.position() + n);
+        if (rowBuffer.hasRemaining()) {
+            return;
+        }
+        rowBuffer = null;
+        commitRow();
+    }
+
+    private void readStagedRow(ByteBuffer src) throws IOException {
+        if (rowBuffer == null) {
+            if (!decoder.canBeginRow()) {
+                return;
+            }
+            rowBuffer = decoder.beginRow();
+        }
+        int n = Math.min(staged.length - stagedFill, src.remaining());
+        src.get(staged, stagedFill, n);
+        stagedFill += n;
+        if (stagedFill < staged.length) {
+            return;
+        }
+        stagedFill = 0;
+        // BGRA to BGR in place, the write position never passes the read position
+        for (int i = 0, j = 0; i < staged.length; i += 4, j += PIXEL_SIZE) {
+            staged[j] = staged[i];
+            staged[j + 1] = staged[i + 1];
+            staged[j + 2] = staged[i + 2];
+        }
+        rowBuffer.put(staged, 0, width * PIXEL_SIZE);
+        rowBuffer = null;
+        commitRow();
+    }
+
+    private void commitRow() {
+        // bottom-up rows start at the lowest row of the target area
+        decoder.commitRow(topDown ? row : height - 1 - row);
+        toSkip = padding;
+        if (++row == height) {
+            state = State.DONE;
+        }
+    }
+}
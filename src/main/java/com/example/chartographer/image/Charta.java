@@ -2,8 +2,7 @@ package com.example.chartographer.image;
 
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class Charta {
 
@@ -11,9 +10,10 @@ public class Charta {
     public static final int MAX_WIDTH = 20000;
     public static final int MIN_HEIGHT = 1;
     public static final int MAX_HEIGHT = 50000;
-
-
-    private static int nextId = 0;
+    /**
+     * Ints per piece in the packed piece array: x, y, width, height.
+     */
+    public static final int PIECE_INTS = 4;
 
     private int id;
     @Min(1)
@@ -22,26 +22,23 @@ public class Charta {
     @Min(1)
     @Max(50000)
     private int height;
-    private List<ImagePiece> pieces;
+    private int[] pieces;
+    private int pieceCount;
+    private ChartaCoverage coverage;
 
     public Charta(int id, int width, int height) {
+        this(id, width, height, new int[PIECE_INTS * 4], 0);
+    }
+
+    /**
+     * Creates a charta holding the first {@code pieceCount} pieces packed in {@code pieces}, see {@link #PIECE_INTS}.
+     */
+    public Charta(int id, int width, int height, int[] pieces, int pieceCount) {
         this.id = id;
         this.width = width;
         this.height = height;
-        pieces = new ArrayList<>();
-    }
-
-
-    public Charta(int width, int height) {
-        this(++nextId, width, height);
-    }
-
-    public static int getNextId() {
-        return nextId;
-    }
-
-    public static void setNextId(int id) {
-        nextId = id;
+        this.pieces = pieces;
+        this.pieceCount = pieceCount;
     }
 
     public int getId() {
@@ -68,28 +65,83 @@ public class Charta {
         this.height = height;
     }
 
-    public void addPiece(ImagePiece piece) {
-        pieces.add(piece);
+    public synchronized void addPiece(ImagePiece piece) {
+        if (pieceCount * PIECE_INTS == pieces.length) {
+            pieces = Arrays.copyOf(pieces, Math.max(pieces.length * 2, PIECE_INTS));
+        }
+        int i = pieceCount++ * PIECE_INTS;
+        pieces[i] = piece.getX();
+        pieces[i + 1] = piece.getY();
+        pieces[i + 2] = piece.getWidth();
+        pieces[i + 3] = piece.getHeight();
+        getCoverage().add(piece.getX(), piece.getY(), piece.getWidth(), piece.getHeight());
     }
 
-    public List<ImagePiece> getPieces() {
-        return pieces;
+    public synchronized int getPieceCount() {
+        return pieceCount;
     }
 
-    public void setPieces(List<ImagePiece> pieces) {
-        this.pieces = pieces;
+    /**
+     * Returns the pieces from index {@code from} on, packed as in {@link #PIECE_INTS}.
+     */
+    public synchronized int[] copyPieces(int from) {
+        return Arrays.copyOfRange(pieces, from * PIECE_INTS, pieceCount * PIECE_INTS);
     }
 
-    public boolean hasFragmentInArea(int x, int y, int width, int height) {
+    public synchronized boolean hasFragmentInArea(int x, int y, int width, int height) {
         if ((x > this.width) || (y > this.height)) return false;
-        for (ImagePiece piece : pieces) {
-            if ((x + width > piece.getX())
-                    && (x < piece.getX() + piece.getWidth())
-                    && (y + height > piece.getY())
-                    && (y < piece.getY() + piece.getHeight())) {
-                return true;
+        return getCoverage().intersects(x, y, width, height);
+    }
+
+    /**
+     * Packs the coverage index of the pieces for storing it with the metadata, see {@link ChartaCoverage#pack()}.
+     * It covers no more pieces than a later {@link #copyPieces} returns.
+     */
+    public synchronized int[] packCoverage() {
+        return getCoverage().pack();
+    }
+
+    /**
+     * Restores a coverage index stored by an earlier {@link #packCoverage()} and adds the pieces stored after it.
+     *
+     * @return false if the index doesn't belong to these pieces, it is then rebuilt on first use
+     */
+    public synchronized boolean restoreCoverage(int[] packed) {
+        ChartaCoverage restored;
+        try {
+            restored = ChartaCoverage.unpack(width, height, packed);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (restored.getPieceCount() > pieceCount) {
+            return false;
+        }
+        for (int i = restored.getPieceCount() * PIECE_INTS; i < pieceCount * PIECE_INTS; i += PIECE_INTS) {
+            restored.add(pieces[i], pieces[i + 1], pieces[i + 2], pieces[i + 3]);
+        }
+        coverage = restored;
+        return true;
+    }
+
+    /**
+     * Returns the coverage index, building it from the pieces on first use, i.e. when the charta was loaded without
+     * a usable stored index. Larger pieces go first: they mark whole cells full, and smaller pieces falling into
+     * full cells are then skipped without being listed.
+     */
+    private ChartaCoverage getCoverage() {
+        if (coverage == null) {
+            long[] bySize = new long[pieceCount];
+            for (int i = 0; i < pieceCount; i++) {
+                long area = (long) pieces[i * PIECE_INTS + 2] * pieces[i * PIECE_INTS + 3];
+                bySize[i] = area << 32 | i;
+            }
+            Arrays.sort(bySize);
+            coverage = new ChartaCoverage(width, height);
+            for (int i = pieceCount - 1; i >= 0; i--) {
+                int piece = (int) bySize[i] * PIECE_INTS;
+                coverage.add(pieces[piece], pieces[piece + 1], pieces[piece + 2], pieces[piece + 3]);
             }
         }
-        return false;
+        return coverage;
     }
 }
@@ -0,0 +1,499 @@
+package com.example.chartographer.image;
+
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coarse grid over a charta answering "is there any piece in this area" without scanning every piece.
+ * A cell is marked full once a single piece covers it entirely. Until then the cell keeps the pieces that
+ * only partially overlap it, so queries touching a cell boundary are still answered exactly. Past
+ * {@link #MAX_CELL_RECTS} pieces a cell switches to a grid of {@link #SUB_SIZE}-pixel sub-cells, marking the
+ * ones a piece covers and keeping the clipped pieces only for the sub-cells they straddle. That bounds both
+ * the work and the memory per cell however many pieces overlap it, and marks the cell full once the pieces
+ * cover it together.
+ * <p>
+ * The index can be packed into ints to be stored with the metadata, so a loaded charta doesn't rebuild it.
+ */
+public class ChartaCoverage {
+    public static final int CELL_SIZE = 256;
+    private static final int RECT_INTS = 4;
+    private static final int MAX_CELL_RECTS = 16;
+    private static final int SUB_SIZE = 16;
+    private static final int SUBS = CELL_SIZE / SUB_SIZE;
+    private static final int SUB_LONGS = SUBS * SUBS / Long.SIZE;
+    /**
+     * Clipped pieces kept for a straddled sub-cell before it switches to a bitmap of {@link #SUB_BITMAP_INTS} ints,
+     * which takes no more room than the pieces did.
+     */
+    private static final int MAX_SUB_RECTS = 7;
+    private static final int SUB_BITMAP_INTS = SUB_SIZE * SUB_SIZE / Integer.SIZE;
+
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private int pieceCount;
+    private long[] fullCells;
+    private Map<Integer, Cell> partialCells;
+
+    public ChartaCoverage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+        this.rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+        this.fullCells = new long[(columns * rows + 63) / 64];
+        this.partialCells = new HashMap<>();
+    }
+
+    public void add(int x, int y, int width, int height) {
+        pieceCount++;
+        int right = Math.min(x + width, this.width);
+        int bottom = Math.min(y + height, this.height);
+        if (x >= right || y >= bottom) {
+            return;
+        }
+        for (int row = y / CELL_SIZE; row <= (bottom - 1) / CELL_SIZE; row++) {
+            for (int column = x / CELL_SIZE; column <= (right - 1) / CELL_SIZE; column++) {
+                int cell = row * columns + column;
+                if (isFull(cell)) {
+                    continue;
+                }
+                if (x <= cellLeft(column) && right >= cellRight(column)
+                        && y <= cellTop(row) && bottom >= cellBottom(row)) {
+                    fullCells[cell >>> 6] |= 1L << cell;
+                    partialCells.remove(cell);
+                } else if (partialCells.computeIfAbsent(cell, key -> new Cell()).add(x, y, right, bottom,
+                        cellLeft(column), cellTop(row), cellRight(column), cellBottom(row))) {
+                    fullCells[cell >>> 6] |= 1L << cell;
+                    partialCells.remove(cell);
+                }
+            }
+        }
+    }
+
+    public boolean intersects(int x, int y, int width, int height) {
+        int right = Math.min(x + width, this.width);
+        int bottom = Math.min(y + height, this.height);
+        if (x >= right || y >= bottom) {
+            return false;
+        }
+        for (int row = y / CELL_SIZE; row <= (bottom - 1) / CELL_SIZE; row++) {
+            for (int column = x / CELL_SIZE; column <= (right - 1) / CELL_SIZE; column++) {
+                int cell = row * columns + column;
+                if (isFull(cell)) {
+                    return true;
+                }
+                Cell partial = partialCells.get(cell);
+                if (partial == null) {
+                    continue;
+                }
+                // every piece listed here overlaps the cell, so a cell lying inside the area is enough
+                if (x <= cellLeft(column) && right >= cellRight(column)
+                        && y <= cellTop(row) && bottom >= cellBottom(row)) {
+                    return true;
+                }
+                if (partial.intersects(x, y, right, bottom,
+                        cellLeft(column), cellTop(row), cellRight(column), cellBottom(row))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of pieces added to the index.
+     */
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    /**
+     * Packs the index: the piece count, the full cells as pairs of ints, the number of partial cells, then for every
+     * partial cell its index and either the number of its piece ints followed by them, or -1 followed by its sub-cells.
+     */
+    public int[] pack() {
+        int size = 2 + fullCells.length * 2;
+        for (Cell partial : partialCells.values()) {
+            size += 1 + partial.packedSize();
+        }
+        IntBuffer packed = IntBuffer.allocate(size);
+        packed.put(pieceCount);
+        for (long word : fullCells) {
+            packed.put((int) word).put((int) (word >>> 32));
+        }
+        packed.put(partialCells.size());
+        for (Map.Entry<Integer, Cell> partial : partialCells.entrySet()) {
+            packed.put(partial.getKey());
+            partial.getValue().pack(packed);
+        }
+        return packed.array();
+    }
+
+    /**
+     * Restores an index packed by {@link #pack()}.
+     *
+     * @throws IllegalArgumentException if the ints don't hold an index of a charta of the given size
+     */
+    public static ChartaCoverage unpack(int width, int height, int[] packed) {
+        ChartaCoverage coverage = new ChartaCoverage(width, height);
+        IntBuffer in = IntBuffer.wrap(packed);
+        try {
+            coverage.pieceCount = in.get();
+            for (int i = 0; i < coverage.fullCells.length; i++) {
+                coverage.fullCells[i] = in.get() & 0xFFFFFFFFL | (long) in.get() << 32;
+            }
+            int partialCount = in.get();
+            for (int i = 0; i < partialCount; i++) {
+                int cell = in.get();
+                if (cell < 0 || cell >= coverage.columns * coverage.rows || coverage.isFull(cell)
+                        || coverage.partialCells.put(cell, Cell.unpack(in)) != null) {
+                    throw new IllegalArgumentException("Invalid coverage cell " + cell);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated coverage index", e);
+        }
+        if (coverage.pieceCount < 0 || in.hasRemaining()) {
+            throw new IllegalArgumentException("Invalid coverage index");
+        }
+        return coverage;
+    }
+
+    private boolean isFull(int cell) {
+        return (fullCells[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    private int cellLeft(int column) {
+        return column * CELL_SIZE;
+    }
+
+    private int cellRight(int column) {
+        return Math.min((column + 1) * CELL_SIZE, width);
+    }
+
+    private int cellTop(int row) {
+        return row * CELL_SIZE;
+    }
+
+    private int cellBottom(int row) {
+        return Math.min((row + 1) * CELL_SIZE, height);
+    }
+
+    private static boolean isSet(long[] bits, int bit) {
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private static boolean allBits(long[] bits, int from, int to) {
+        for (int word = from >>> 6; word <= (to - 1) >>> 6; word++) {
+            long mask = mask(word, from, to);
+            if ((bits[word] & mask) != mask) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bits {@code [from, to)} that fall into the given word.
+     */
+    private static long mask(int word, int from, int to) {
+        long mask = -1L;
+        if (word == from >>> 6) {
+            mask &= -1L << from;
+        }
+        if (word == (to - 1) >>> 6) {
+            mask &= -1L >>> (63 - ((to - 1) & 63));
+        }
+        return mask;
+    }
+
+    /**
+     * Bits {@code [from, to)} of a sub-cell row.
+     */
+    private static int rowMask(int from, int to) {
+        return (1 << to) - (1 << from);
+    }
+
+    /**
+     * Packs a piece clipped to a sub-cell, in sub-cell coordinates, into the low 16 bits of an int.
+     */
+    private static int packRect(int x, int y, int right, int bottom) {
+        return x | y << 4 | (right - 1) << 8 | (bottom - 1) << 12;
+    }
+
+    /**
+     * Pieces partially overlapping one cell, as packed (x, y, width, height) in charta coordinates,
+     * or as a grid of sub-cells once there are too many of them. A straddled sub-cell keeps its clipped pieces,
+     * see {@link #packRect}, or a bitmap with a row in each half of an int once they'd take more room than that.
+     */
+    private static final class Cell {
+        private int[] rects = new int[RECT_INTS * 2];
+        private int size;
+        private long[] fullSubs;
+        private long[] straddledSubs;
+        /**
+         * Payloads of the straddled sub-cells, in the order of their bits.
+         */
+        private int[][] subs;
+
+        /**
+         * @return true if the pieces now cover the whole cell
+         */
+        private boolean add(int x, int y, int right, int bottom, int left, int top, int cellRight, int cellBottom) {
+            if (fullSubs == null) {
+                if (size == rects.length) {
+                    rects = Arrays.copyOf(rects, size * 2);
+                }
+                rects[size] = x;
+                rects[size + 1] = y;
+                rects[size + 2] = right - x;
+                rects[size + 3] = bottom - y;
+                size += RECT_INTS;
+                if (size <= MAX_CELL_RECTS * RECT_INTS) {
+                    return false;
+                }
+                fullSubs = new long[SUB_LONGS];
+                straddledSubs = new long[SUB_LONGS];
+                subs = new int[0][];
+                for (int i = 0; i < size; i += RECT_INTS) {
+                    cover(rects[i], rects[i + 1], rects[i] + rects[i + 2], rects[i + 1] + rects[i + 3],
+                            left, top, cellRight, cellBottom);
+                }
+                rects = null;
+                size = 0;
+            } else {
+                cover(x, y, right, bottom, left, top, cellRight, cellBottom);
+            }
+            int columns = (cellRight - left + SUB_SIZE - 1) / SUB_SIZE;
+            for (int row = 0; row < (cellBottom - top + SUB_SIZE - 1) / SUB_SIZE; row++) {
+                if (!allBits(fullSubs, row * SUBS, row * SUBS + columns)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int packedSize() {
+            if (fullSubs == null) {
+                return 1 + size;
+            }
+            int packedSize = 1 + SUB_LONGS * 4;
+            for (int[] payload : subs) {
+                packedSize += 1 + payload.length;
+            }
+            return packedSize;
+        }
+
+        private void pack(IntBuffer packed) {
+            if (fullSubs == null) {
+                packed.put(size).put(rects, 0, size);
+                return;
+            }
+            packed.put(-1);
+            for (long[] bits : new long[][]{fullSubs, straddledSubs}) {
+                for (long word : bits) {
+                    packed.put((int) word).put((int) (word >>> 32));
+                }
+            }
+            for (int[] payload : subs) {
+                packed.put(payload.length).put(payload);
+            }
+        }
+
+        private static Cell unpack(IntBuffer packed) {
+            Cell cell = new Cell();
+            int size = packed.get();
+            if (size >= 0) {
+                if (size % RECT_INTS != 0 || size > MAX_CELL_RECTS * RECT_INTS) {
+                    throw new IllegalArgumentException("Invalid coverage cell size " + size);
+                }
+                cell.rects = new int[Math.max(size, cell.rects.length)];
+                packed.get(cell.rects, 0, size);
+                cell.size = size;
+                return cell;
+            }
+            if (size != -1) {
+                throw new IllegalArgumentException("Invalid coverage cell size " + size);
+            }
+            cell.rects = null;
+            cell.fullSubs = new long[SUB_LONGS];
+            cell.straddledSubs = new long[SUB_LONGS];
+            int straddled = 0;
+            for (long[] bits : new long[][]{cell.fullSubs, cell.straddledSubs}) {
+                for (int i = 0; i < SUB_LONGS; i++) {
+                    bits[i] = packed.get() & 0xFFFFFFFFL | (long) packed.get() << 32;
+                }
+            }
+            for (int i = 0; i < SUB_LONGS; i++) {
+                straddled += Long.bitCount(cell.straddledSubs[i]);
+            }
+            cell.subs = new int[straddled][];
+            for (int i = 0; i < straddled; i++) {
+                int length = packed.get();
+                if (length < 1 || length > SUB_BITMAP_INTS) {
+                    throw new IllegalArgumentException("Invalid sub-cell size " + length);
+                }
+                cell.subs[i] = new int[length];
+                packed.get(cell.subs[i]);
+            }
+            return cell;
+        }
+
+        private boolean intersects(int x, int y, int right, int bottom,
+                                   int left, int top, int cellRight, int cellBottom) {
+            if (fullSubs == null) {
+                for (int i = 0; i < size; i += RECT_INTS) {
+                    if (right > rects[i] && x < rects[i] + rects[i + 2]
+                            && bottom > rects[i + 1] && y < rects[i + 1] + rects[i + 3]) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            for (int row = (Math.max(y, top) - top) / SUB_SIZE;
+                 row <= (Math.min(bottom, cellBottom) - 1 - top) / SUB_SIZE; row++) {
+                int subTop = top + row * SUB_SIZE;
+                int subBottom = Math.min(subTop + SUB_SIZE, cellBottom);
+                for (int column = (Math.max(x, left) - left) / SUB_SIZE;
+                     column <= (Math.min(right, cellRight) - 1 - left) / SUB_SIZE; column++) {
+                    int sub = row * SUBS + column;
+                    if (isSet(fullSubs, sub)) {
+                        return true;
+                    }
+                    if (!isSet(straddledSubs, sub)) {
+                        continue;
+                    }
+                    int subLeft = left + column * SUB_SIZE;
+                    int subRight = Math.min(subLeft + SUB_SIZE, cellRight);
+                    // a straddled sub-cell holds some piece, so one lying inside the area is enough
+                    if (x <= subLeft && right >= subRight && y <= subTop && bottom >= subBottom) {
+                        return true;
+                    }
+                    if (touches(subs[rank(sub)], Math.max(x, subLeft) - subLeft, Math.max(y, subTop) - subTop,
+                            Math.min(right, subRight) - subLeft, Math.min(bottom, subBottom) - subTop)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void cover(int x, int y, int right, int bottom, int left, int top, int cellRight, int cellBottom) {
+            for (int row = (Math.max(y, top) - top) / SUB_SIZE;
+                 row <= (Math.min(bottom, cellBottom) - 1 - top) / SUB_SIZE; row++) {
+                int subTop = top + row * SUB_SIZE;
+                int subBottom = Math.min(subTop + SUB_SIZE, cellBottom);
+                for (int column = (Math.max(x, left) - left) / SUB_SIZE;
+                     column <= (Math.min(right, cellRight) - 1 - left) / SUB_SIZE; column++) {
+                    int sub = row * SUBS + column;
+                    if (isSet(fullSubs, sub)) {
+                        continue;
+                    }
+                    int subLeft = left + column * SUB_SIZE;
+                    int subRight = Math.min(subLeft + SUB_SIZE, cellRight);
+                    if ((x <= subLeft && right >= subRight && y <= subTop && bottom >= subBottom)
+                            || straddle(sub, Math.max(x, subLeft) - subLeft, Math.max(y, subTop) - subTop,
+                            Math.min(right, subRight) - subLeft, Math.min(bottom, subBottom) - subTop,
+                            subRight - subLeft, subBottom - subTop)) {
+                        fullSubs[sub >>> 6] |= 1L << sub;
+                        unstraddle(sub);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds a piece clipped to a sub-cell.
+         *
+         * @return true if the pieces now cover the whole sub-cell
+         */
+        private boolean straddle(int sub, int x, int y, int right, int bottom, int subWidth, int subHeight) {
+            int rank = rank(sub);
+            int[] payload;
+            if (!isSet(straddledSubs, sub)) {
+                straddledSubs[sub >>> 6] |= 1L << sub;
+                int[][] grown = new int[subs.length + 1][];
+                System.arraycopy(subs, 0, grown, 0, rank);
+                System.arraycopy(subs, rank, grown, rank + 1, subs.length - rank);
+                subs = grown;
+                payload = new int[]{packRect(x, y, right, bottom)};
+            } else if (subs[rank].length < MAX_SUB_RECTS) {
+                payload = Arrays.copyOf(subs[rank], subs[rank].length + 1);
+                payload[payload.length - 1] = packRect(x, y, right, bottom);
+            } else {
+                payload = subs[rank].length == MAX_SUB_RECTS ? render(subs[rank]) : subs[rank];
+                paint(payload, x, y, right, bottom);
+            }
+            subs[rank] = payload;
+            int[] bitmap = payload.length == SUB_BITMAP_INTS ? payload : render(payload);
+            int full = rowMask(0, subWidth);
+            for (int row = 0; row < subHeight; row++) {
+                if ((bitmap[row >>> 1] >>> ((row & 1) * SUB_SIZE) & full) != full) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void unstraddle(int sub) {
+            if (!isSet(straddledSubs, sub)) {
+                return;
+            }
+            int rank = rank(sub);
+            straddledSubs[sub >>> 6] &= ~(1L << sub);
+            int[][] shrunk = new int[subs.length - 1][];
+            System.arraycopy(subs, 0, shrunk, 0, rank);
+            System.arraycopy(subs, rank + 1, shrunk, rank, shrunk.length - rank);
+            subs = shrunk;
+        }
+
+        /**
+         * Index of the payload of a straddled sub-cell: the number of straddled sub-cells before it.
+         */
+        private int rank(int sub) {
+            int rank = Long.bitCount(straddledSubs[sub >>> 6] & ((1L << sub) - 1));
+            for (int word = 0; word < sub >>> 6; word++) {
+                rank += Long.bitCount(straddledSubs[word]);
+            }
+            return rank;
+        }
+
+        private static boolean touches(int[] payload, int x, int y, int right, int bottom) {
+            if (payload.length == SUB_BITMAP_INTS) {
+                int columns = rowMask(x, right);
+                for (int row = y; row < bottom; row++) {
+                    if ((payload[row >>> 1] >>> ((row & 1) * SUB_SIZE) & columns) != 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            for (int rect : payload) {
+                if (right > (rect & 15) && x <= (rect >>> 8 & 15)
+                        && bottom > (rect >>> 4 & 15) && y <= (rect >>> 12 & 15)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int[] render(int[] rects) {
+            int[] bitmap = new int[SUB_BITMAP_INTS];
+            for (int rect : rects) {
+                paint(bitmap, rect & 15, rect >>> 4 & 15, (rect >>> 8 & 15) + 1, (rect >>> 12 & 15) + 1);
+            }
+            return bitmap;
+        }
+
+        private static void paint(int[] bitmap, int x, int y, int right, int bottom) {
+            int columns = rowMask(x, right);
+            for (int row = y; row < bottom; row++) {
+                bitmap[row >>> 1] |= columns << ((row & 1) * SUB_SIZE);
+            }
+        }
+    }
+}
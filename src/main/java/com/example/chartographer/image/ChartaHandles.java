@@ -0,0 +1,92 @@
+package com.example.chartographer.image;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the handle caches of the storage engines and the preview pyramid, closes their idle handles
+ * in the background and sums up their statistics.
+ */
+@Component
+public class ChartaHandles {
+
+    private final List<HandleCache<?>> caches = new CopyOnWriteArrayList<>();
+
+    @Value("${chartographer.handles.max-open:256}")
+    private int maxOpen;
+
+    @Value("${chartographer.handles.idle-timeout-ms:60000}")
+    private long idleTimeoutMs;
+
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    private void start() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "charta-handle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutMs / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void stop() throws IOException {
+        sweeper.shutdownNow();
+        for (HandleCache<?> cache : caches) {
+            cache.closeAll();
+        }
+    }
+
+    /**
+     * Creates a cache keeping at most {@code max-open} handles open.
+     */
+    public <T extends Closeable> HandleCache<T> create(HandleCache.Opener<T> opener) {
+        HandleCache<T> cache = new HandleCache<>(opener, maxOpen, TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs));
+        caches.add(cache);
+        return cache;
+    }
+
+    public long getOpen() {
+        return caches.stream().mapToLong(HandleCache::getOpen).sum();
+    }
+
+    public long getHits() {
+        return caches.stream().mapToLong(HandleCache::getHits).sum();
+    }
+
+    public long getMisses() {
+        return caches.stream().mapToLong(HandleCache::getMisses).sum();
+    }
+
+    public long getEvictions() {
+        return caches.stream().mapToLong(HandleCache::getEvictions).sum();
+    }
+
+    public double getHitRatio() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private void evictIdle() {
+        for (HandleCache<?> cache : caches) {
+            try {
+                cache.evictIdle();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.chartographer.image;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Read/write locks for charta pixel data, striped by bands of rows.
+ * Operations on disjoint bands of the same charta never wait for each other.
+ * Bands are always locked top to bottom, so overlapping requests can't deadlock.
+ * Locks are not owned by threads: an asynchronous upload may release its lock on another thread,
+ * and they are not reentrant either. A lock can also be requested without blocking, the request
+ * then waits in the queue of the band and is granted by the release making room for it.
+ */
+@Component
+public class ChartaLockManager {
+
+    private final Map<Integer, Band[]> locks = new ConcurrentHashMap<>();
+
+    @Value("${chartographer.locks.band-height:256}")
+    private int bandHeight;
+
+    public RegionLock lockRead(Charta c, int y, int height) {
+        return await(lockAsync(c, y, height, false));
+    }
+
+    public RegionLock lockWrite(Charta c, int y, int height) {
+        return await(lockAsync(c, y, height, true));
+    }
+
+    /**
+     * Requests the write lock of the rows without blocking. {@code onGranted} runs once every band is held,
+     * either on the calling thread before this method returns or on the thread releasing the last band
+     * in the way, so it should hand longer work over to another thread.
+     * Closing the returned lock before it is granted withdraws the request.
+     */
+    public RegionLock lockWriteAsync(Charta c, int y, int height, Runnable onGranted) {
+        RegionLock lock = lockAsync(c, y, height, true);
+        lock.whenGranted(onGranted);
+        return lock;
+    }
+
+    /**
+     * Locks the whole charta exclusively, e.g. to wait for running operations before removing it.
+     */
+    public RegionLock lockAll(Charta c) {
+        return lockWrite(c, 0, c.getHeight());
+    }
+
+    /**
+     * Forgets the locks of a removed charta. Callers still waiting on them re-check that the charta exists.
+     */
+    public void remove(int id) {
+        locks.remove(id);
+    }
+
+    private RegionLock lockAsync(Charta c, int y, int height, boolean exclusive) {
+        Band[] bands = locks.computeIfAbsent(c.getId(),
+                id -> createBands((c.getHeight() + bandHeight - 1) / bandHeight));
+        int first = Math.min(y, c.getHeight()) / bandHeight;
+        int last = (int) ((Math.min((long) y + height, c.getHeight()) - 1) / bandHeight);
+        // an empty range locks nothing, even at the top of the charta where last would name band 0
+        int count = height > 0 ? Math.max(0, last - first + 1) : 0;
+        Band[] region = new Band[count];
+        System.arraycopy(bands, first, region, 0, count);
+        RegionLock lock = new RegionLock(region, exclusive);
+        lock.acquire(0);
+        return lock;
+    }
+
+    private static RegionLock await(RegionLock lock) {
+        CountDownLatch granted = new CountDownLatch(1);
+        lock.whenGranted(granted::countDown);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                granted.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return lock;
+    }
+
+    private static Band[] createBands(int count) {
+        Band[] bands = new Band[count];
+        for (int i = 0; i < count; i++) {
+            bands[i] = new Band();
+        }
+        return bands;
+    }
+
+    /**
+     * Fair read/write lock of one band. Requests that can't be granted wait in arrival order,
+     * so a waiting write holds back later reads and is never starved.
+     */
+    private static final class Band {
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private int readers;
+        private boolean writing;
+
+        /**
+         * @return true if the band is held now, otherwise {@code onGranted} runs once it is
+         */
+        private synchronized boolean acquire(boolean exclusive, Runnable onGranted) {
+            if (waiters.isEmpty() && isFree(exclusive)) {
+                take(exclusive);
+                return true;
+            }
+            waiters.add(new Waiter(exclusive, onGranted));
+            return false;
+        }
+
+        private void release(boolean exclusive) {
+            List<Runnable> granted = new ArrayList<>();
+            synchronized (this) {
+                if (exclusive) {
+                    writing = false;
+                } else {
+                    readers--;
+                }
+                while (!waiters.isEmpty() && isFree(waiters.peek().exclusive)) {
+                    Waiter waiter = waiters.remove();
+                    take(waiter.exclusive);
+                    granted.add(waiter.onGranted);
+                }
+            }
+            // outside the monitor, a granted request goes on to lock its next band
+            for (Runnable onGranted : granted) {
+                onGranted.run();
+            }
+        }
+
+        private boolean isFree(boolean exclusive) {
+            return !writing && (!exclusive || readers == 0);
+        }
+
+        private void take(boolean exclusive) {
+            if (exclusive) {
+                writing = true;
+            } else {
+                readers++;
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final boolean exclusive;
+        private final Runnable onGranted;
+
+        private Waiter(boolean exclusive, Runnable onGranted) {
+            this.exclusive = exclusive;
+            this.onGranted = onGranted;
+        }
+    }
+
+    public static final class RegionLock implements AutoCloseable {
+        private final Band[] bands;
+        private final boolean exclusive;
+        private int held;
+        private boolean granted;
+        private boolean released;
+        private Runnable onGranted;
+
+        private RegionLock(Band[] bands, boolean exclusive) {
+            this.bands = bands;
+            this.exclusive = exclusive;
+        }
+
+        /**
+         * Releases the bands, may be called from any thread. Later calls do nothing.
+         */
+        @Override
+        public void close() {
+            int count;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                count = held;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                bands[i].release(exclusive);
+            }
+        }
+
+        /**
+         * Locks the bands from {@code from} on, stopping at the first one that has to be waited for.
+         */
+        private void acquire(int from) {
+            for (int i = from; i < bands.length; i++) {
+                int next = i + 1;
+                if (!bands[i].acquire(exclusive, () -> {
+                    if (hold(next)) {
+                        acquire(next);
+                    }
+                })) {
+                    return;
+                }
+                if (!hold(next)) {
+                    return;
+                }
+            }
+            Runnable callback;
+            synchronized (this) {
+                granted = true;
+                callback = onGranted;
+            }
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        /**
+         * Records that the first {@code count} bands are held, or gives the last one back if the lock was closed meanwhile.
+         */
+        private boolean hold(int count) {
+            synchronized (this) {
+                if (!released) {
+                    held = count;
+                    return true;
+                }
+            }
+            bands[count - 1].release(exclusive);
+            return false;
+        }
+
+        private void whenGranted(Runnable callback) {
+            synchronized (this) {
+                if (!granted) {
+                    onGranted = callback;
+                    return;
+                }
+            }
+            callback.run();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage engine for charta pixels. Rows are addressed from the top of the charta and hold
+ * 24-bit BGR pixels without padding; callers only pass areas inside the charta.
+ */
+public interface ChartaStorage {
+
+    /**
+     * Creates the pixel storage of a new, completely black charta and writes it through to the disk.
+     */
+    void create(Charta c) throws IOException;
+
+    boolean exists(int id);
+
+    /**
+     * Copies the remaining BGR pixels of {@code src} into row {@code y} starting at column {@code x}.
+     * The buffer position is advanced past the copied bytes.
+     */
+    void writeRow(Charta c, int y, int x, ByteBuffer src) throws IOException;
+
+    /**
+     * Fills the remaining space of {@code dst} with BGR pixels of row {@code y} starting at column {@code x}.
+     * The buffer position is advanced past the copied bytes.
+     */
+    void readRow(Charta c, int y, int x, ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes the rows written so far through to the disk.
+     */
+    void force(Charta c) throws IOException;
+
+    void delete(int id) throws IOException;
+}
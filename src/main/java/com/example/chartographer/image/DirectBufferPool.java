@@ -0,0 +1,125 @@
+package com.example.chartographer.image;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct byte buffers shared by the charta readers and writers.
+ * Buffers come in power-of-two size classes from 4 KiB up; a released buffer is kept for the next lease of its class,
+ * so steady-state requests reuse the same off-heap memory instead of allocating row buffers.
+ * Leases over {@code max-pooled-bytes} get a buffer of their own, left to the garbage collector once released.
+ */
+@Component
+public class DirectBufferPool {
+    private static final int MIN_CLASS = 12;
+    private static final int MAX_CLASS = 30;
+    private static final int CLASS_COUNT = MAX_CLASS + 1 - MIN_CLASS;
+
+    private final Queue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCounts;
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    @Value("${chartographer.buffers.max-idle-per-class:32}")
+    private int maxIdlePerClass;
+
+    @Value("${chartographer.buffers.max-pooled-bytes:67108864}")
+    private int maxPooledBytes;
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool() {
+        idle = new Queue[CLASS_COUNT];
+        idleCounts = new AtomicInteger[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a buffer with position 0 and limit {@code capacity}. Its content is undefined.
+     */
+    public ByteBuffer lease(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        leases.increment();
+        if (!isPooled(sizeClass)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            allocations.increment();
+            allocatedBytes.add(capacity);
+            return buffer;
+        }
+        ByteBuffer buffer = idle[sizeClass].poll();
+        if (buffer != null) {
+            idleCounts[sizeClass].decrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS));
+            allocations.increment();
+            allocatedBytes.add(buffer.capacity());
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_CLASS;
+        releases.increment();
+        if (Integer.bitCount(buffer.capacity()) != 1 || !isPooled(sizeClass)) {
+            discards.increment();
+        } else if (idleCounts[sizeClass].incrementAndGet() <= maxIdlePerClass) {
+            idle[sizeClass].offer(buffer);
+        } else {
+            // left to the garbage collector, which frees its native memory
+            idleCounts[sizeClass].decrementAndGet();
+            discards.increment();
+        }
+    }
+
+    public long getLeases() {
+        return leases.sum();
+    }
+
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    public long getDiscards() {
+        return discards.sum();
+    }
+
+    /**
+     * Buffers currently leased and not yet released.
+     */
+    public long getOutstanding() {
+        return leases.sum() - releases.sum();
+    }
+
+    public long getIdle() {
+        long count = 0;
+        for (AtomicInteger idleCount : idleCounts) {
+            count += idleCount.get();
+        }
+        return count;
+    }
+
+    private boolean isPooled(int sizeClass) {
+        return sizeClass >= 0 && sizeClass < CLASS_COUNT && 1 << (sizeClass + MIN_CLASS) <= maxPooledBytes;
+    }
+
+    private static int sizeClass(int capacity) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(bits, MIN_CLASS) - MIN_CLASS;
+    }
+}
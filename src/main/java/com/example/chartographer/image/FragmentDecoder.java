@@ -0,0 +1,230 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.metrics.ChartaMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a BMP or PNG fragment fed in pieces of any size, as they arrive from the network,
+ * and queues its rows for the charta. The format is told by the first bytes of the data.
+ * Not thread-safe, callers feeding it from several threads synchronize.
+ */
+public class FragmentDecoder implements AutoCloseable {
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private enum State {
+        SIGNATURE, PIXELS, DONE, INVALID
+    }
+
+    /**
+     * Decodes the pixels of one image format into rows of the fragment, in the charta layout.
+     */
+    interface Format {
+        /**
+         * Consumes data of {@code src} until the image is complete, or until {@link #canBeginRow} fails.
+         * A format stopped there resumes when fed again, before consuming anything more.
+         *
+         * @return false if the data is not an image of the fragment size in a supported variant of the format
+         */
+        boolean feed(ByteBuffer src) throws IOException;
+
+        boolean isComplete();
+
+        default void close() {
+        }
+    }
+
+    private final Charta charta;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final IngestPipeline.Upload upload;
+    private final MipmapPyramid pyramid;
+    private final ChartaMetrics metrics;
+    private final byte[] signature = new byte[PNG_SIGNATURE.length];
+    private State state = State.SIGNATURE;
+    private int signatureFill;
+    private Format format;
+    private boolean blocking;
+    private boolean stalled;
+    private int rowsCommitted;
+    private long bytesFed;
+    private long stageStart;
+
+    FragmentDecoder(Charta charta, int x, int y, int width, int height,
+                    IngestPipeline.Upload upload, MipmapPyramid pyramid, ChartaMetrics metrics) {
+        this.charta = charta;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.upload = upload;
+        this.pyramid = pyramid;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Consumes the data remaining in {@code src}. Data following a complete fragment is ignored.
+     * May block while the upload waits for the disk.
+     *
+     * @return false if the data is not a fragment that can be saved
+     */
+    public boolean feed(ByteBuffer src) throws IOException {
+        return feed(src, true);
+    }
+
+    /**
+     * Like {@link #feed}, but stops instead of blocking when every buffer of the upload waits for the disk.
+     * The decoder is then {@link #isStalled() stalled}, and the data left in {@code src} has to be offered again,
+     * unchanged, once {@link #whenWritable} calls back.
+     */
+    public boolean offer(ByteBuffer src) throws IOException {
+        return feed(src, false);
+    }
+
+    /**
+     * Tells whether the last {@link #offer} stopped for a free buffer.
+     */
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * Runs {@code callback} once a buffer is free, on the writer thread freeing it unless one is free already.
+     */
+    public void whenWritable(Runnable callback) {
+        upload.whenFree(callback);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Number of bytes fed so far, including the ignored ones.
+     */
+    public long getBytesFed() {
+        return bytesFed;
+    }
+
+    /**
+     * Waits until every row is stored and updates the previews.
+     *
+     * @return false if the data ended before the last row
+     */
+    public boolean finish() throws IOException {
+        if (state != State.DONE) {
+            return false;
+        }
+        upload.finish();
+        long start = System.nanoTime();
+        pyramid.update(charta, x, y, width, height);
+        metrics.recordStage(ChartaMetrics.STAGE_PREVIEW_UPDATE, start);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (format != null) {
+            format.close();
+        }
+        upload.close();
+    }
+
+    /**
+     * Tells the format whether the next row can begin. It can't while a non-blocking feed has no free buffer;
+     * the format then stops consuming data until the feed is repeated.
+     */
+    boolean canBeginRow() {
+        if (blocking || upload.hasFreeBuffer()) {
+            return true;
+        }
+        stalled = true;
+        return false;
+    }
+
+    /**
+     * Returns the buffer to fill with the next row, {@code width * 3} bytes of BGR pixels.
+     */
+    ByteBuffer beginRow() throws IOException {
+        if (rowsCommitted == 0 && stageStart != 0) {
+            metrics.recordStage(ChartaMetrics.STAGE_HEADER_VALIDATE, stageStart);
+            stageStart = System.nanoTime();
+        }
+        return upload.beginRow();
+    }
+
+    /**
+     * Queues the row filled since the last {@link #beginRow} as row {@code row} of the fragment, counted from the top.
+     */
+    void commitRow(int row) {
+        upload.commitRow(y + row);
+        if (++rowsCommitted == height) {
+            metrics.recordStage(ChartaMetrics.STAGE_ROW_READ, stageStart);
+        }
+    }
+
+    private boolean feed(ByteBuffer src, boolean blocking) throws IOException {
+        if (bytesFed == 0) {
+            stageStart = System.nanoTime();
+        }
+        this.blocking = blocking;
+        stalled = false;
+        int start = src.position();
+        if (state == State.SIGNATURE) {
+            int n = Math.min(signature.length - signatureFill, src.remaining());
+            src.get(signature, signatureFill, n);
+            signatureFill += n;
+            if (signatureFill == signature.length) {
+                format = detectFormat();
+                state = format != null ? State.PIXELS : State.INVALID;
+                // the format parses its header from the start, signature included
+                if (state == State.PIXELS && !decode(ByteBuffer.wrap(signature))) {
+                    state = State.INVALID;
+                }
+            }
+        }
+        if (state == State.PIXELS && !decode(src)) {
+            state = State.INVALID;
+        }
+        if (!stalled) {
+            // the data following a complete or invalid fragment counts as fed
+            src.position(src.limit());
+        }
+        bytesFed += src.position() - start;
+        return state != State.INVALID;
+    }
+
+    private boolean decode(ByteBuffer src) throws IOException {
+        if (!format.feed(src)) {
+            format.close();
+            return false;
+        }
+        if (format.isComplete()) {
+            state = State.DONE;
+        }
+        return true;
+    }
+
+    private Format detectFormat() {
+        if (signature[0] == 'B' && signature[1] == 'M') {
+            return new BmpFragmentFormat(this, width, height);
+        }
+        for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (signature[i] != PNG_SIGNATURE[i]) {
+                return null;
+            }
+        }
+        return new PngFragmentFormat(this, width, height);
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.chartographer.image;
+
+/**
+ * Rectangular area of a charta requested by a client. It may extend past the charta borders.
+ */
+public class FragmentRegion {
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    public FragmentRegion(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean containsRow(int row) {
+        return row >= y && row < y + height;
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.chartographer.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of open per-charta handles, such as file channels or mappings, keyed by charta id.
+ * Handles are reference counted: a handle is closed only once no lease holds it, whether it was evicted
+ * for being idle, evicted to stay within the bound or invalidated because the charta is deleted.
+ * When every cached handle is leased, the cache briefly grows past its bound instead of blocking.
+ */
+public class HandleCache<T extends Closeable> {
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final Opener<T> opener;
+    private final int maxOpen;
+    private final long idleTimeoutNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public HandleCache(Opener<T> opener, int maxOpen, long idleTimeoutNanos) {
+        this.opener = opener;
+        this.maxOpen = maxOpen;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    /**
+     * Returns a lease on the handle of the charta, opening it if needed. The lease must be closed exactly once.
+     */
+    public Lease<T> acquire(Charta c) throws IOException {
+        Entry entry = entries.get(c.getId());
+        if (entry != null && entry.retain()) {
+            hits.increment();
+            return entry;
+        }
+        synchronized (this) {
+            entry = entries.get(c.getId());
+            if (entry != null && entry.retain()) {
+                hits.increment();
+                return entry;
+            }
+            misses.increment();
+            entry = new Entry(c.getId(), opener.open(c));
+            entries.put(c.getId(), entry);
+            if (entries.size() > maxOpen) {
+                evictLeastRecentlyUsed();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Returns a lease on the handle of the charta if it is open, without opening it,
+     * e.g. to sync a handle that may belong to a removed charta.
+     *
+     * @return null if the handle isn't open
+     */
+    public Lease<T> acquireIfOpen(int id) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.retain()) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Drops the handle of the charta, it is closed as soon as its last lease is.
+     */
+    public void invalidate(int id) throws IOException {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            entry.discard();
+        }
+    }
+
+    /**
+     * Closes the handles that have not been leased for the idle timeout,
+     * and the least recently used ones while the cache is past its bound.
+     */
+    public void evictIdle() throws IOException {
+        long now = System.nanoTime();
+        for (Entry entry : entries.values()) {
+            if (now - entry.lastUsed >= idleTimeoutNanos && entry.tryClose()) {
+                entries.remove(entry.id, entry);
+                evictions.increment();
+            }
+        }
+        synchronized (this) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    public void closeAll() throws IOException {
+        for (Entry entry : entries.values()) {
+            invalidate(entry.id);
+        }
+    }
+
+    public int getOpen() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private void evictLeastRecentlyUsed() throws IOException {
+        while (entries.size() > maxOpen) {
+            Entry oldest = null;
+            for (Entry entry : entries.values()) {
+                if (entry.refs.get() == 0 && (oldest == null || entry.lastUsed - oldest.lastUsed < 0)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            if (oldest.tryClose()) {
+                entries.remove(oldest.id, oldest);
+                evictions.increment();
+            }
+        }
+    }
+
+    public interface Opener<T> {
+        T open(Charta c) throws IOException;
+    }
+
+    public interface Lease<T> extends AutoCloseable {
+        T get();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * A cached handle. {@code refs} counts the leases, -1 means the handle is closed;
+     * a discarded entry is no longer cached and its last lease closes it.
+     */
+    private final class Entry implements Lease<T> {
+        private final int id;
+        private final T handle;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private volatile long lastUsed = System.nanoTime();
+        private volatile boolean discarded;
+
+        private Entry(int id, T handle) {
+            this.id = id;
+            this.handle = handle;
+        }
+
+        @Override
+        public T get() {
+            return handle;
+        }
+
+        private boolean retain() {
+            int count;
+            do {
+                count = refs.get();
+                if (count < 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lastUsed = System.nanoTime();
+            if (refs.decrementAndGet() == 0 && discarded) {
+                tryClose();
+            }
+        }
+
+        private void discard() throws IOException {
+            discarded = true;
+            tryClose();
+        }
+
+        private boolean tryClose() throws IOException {
+            if (!refs.compareAndSet(0, -1)) {
+                return false;
+            }
+            handle.close();
+            return true;
+        }
+    }
+}
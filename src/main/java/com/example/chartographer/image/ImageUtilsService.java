@@ -1,20 +1,21 @@
 package com.example.chartographer.image;
 
-import com.example.chartographer.config.StartupRunner;
+import com.example.chartographer.metrics.ChartaMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.file.Files;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
 
 @Service
 public class ImageUtilsService {
@@ -29,70 +30,314 @@ public class ImageUtilsService {
     private static final int PIXELS_PER_METER_HEIGHT = 2834;
     private static final char COLOR_DEPTH = 24;
     private static final int DWORD_SIZE = 4;
-    private static final int DIB_HEADER_SIZE = 40;
-    private static final int DIB_MIN_HEADER_SIZE = 12;
-    private static final int DIB_MAX_HEADER_SIZE = 124;
+    static final int DIB_HEADER_SIZE = 40;
+    static final int DIB_MIN_HEADER_SIZE = 12;
+    static final int DIB_MAX_HEADER_SIZE = 124;
+    private static final int APPEND_BUFFER_SIZE = 65536;
     private static final int PIXEL_SIZE = 3;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte PNG_COLOR_TYPE_RGB = 2;
+    private static final byte PNG_FILTER_SUB = 1;
+    private static final byte[] BLACK_ROW = new byte[getRowStride(Charta.MAX_WIDTH)];
 
+    @Autowired
+    private ChartaStorage storage;
 
-    public boolean createEmptyBMPfile(int width, int height, String filename) throws IOException {
-        OutputStream fos = Files.newOutputStream(StartupRunner.getPathToWorkingDirectory().resolve(filename + ".bmp"));
-        if (writeHeaderToFile(fos, width, height)) {
-            writeEmptyImage(fos, width, height);
-            fos.close();
+    @Autowired
+    private IngestPipeline ingestPipeline;
+
+    @Autowired
+    private DirectBufferPool bufferPool;
+
+    @Autowired
+    private MipmapPyramid pyramid;
+
+    @Autowired
+    private ParallelCompressor compressor;
+
+    @Autowired
+    private RowBandExecutor bands;
+
+    @Autowired
+    private ChartaMetrics metrics;
+
+    public void createChartaImage(Charta c) throws IOException {
+        storage.create(c);
+        pyramid.create(c);
+    }
+
+    /**
+     * Recreates the black pixel storage of a charta whose files were lost in a crash.
+     * Missing preview levels are created and rebuilt when the charta is next opened.
+     */
+    public void restoreChartaImage(Charta c) throws IOException {
+        if (!storage.exists(c.getId())) {
+            storage.create(c);
         }
-        return false;
     }
 
     public boolean appendToImage(Charta c, InputStream is, int id, int x, int y, int width, int height) throws IOException {
-
-        if (c.getWidth() < x + width || c.getHeight() < y + height) {
-            return false;
+        try (FragmentDecoder decoder = openFragment(c, x, y, width, height)) {
+            if (decoder == null) {
+                return false;
+            }
+            byte[] buffer = new byte[APPEND_BUFFER_SIZE];
+            while (!decoder.isComplete()) {
+                int read = is.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                if (!decoder.feed(ByteBuffer.wrap(buffer, 0, read))) {
+                    return false;
+                }
+            }
+            return decoder.finish();
         }
+    }
 
-        File pathToChartaBmp = StartupRunner.getPathToWorkingDirectory().resolve(id + ".bmp").toFile();
-        RandomAccessFile chartaImage = new RandomAccessFile(pathToChartaBmp, "rw");
-        byte[] image = new byte[1 << 16];
-        int read = is.readNBytes(image, 0, BITMAP_FILE_HEADER_SIZE + 4);
-        if (read < BITMAP_FILE_HEADER_SIZE + 4) {
-            return false;
+    /**
+     * Starts saving a fragment whose BMP or PNG is fed to the returned decoder as it arrives.
+     * The caller holds the write lock of the target rows while feeding it and until it is closed.
+     *
+     * @return null if the fragment doesn't fit into the charta
+     */
+    public FragmentDecoder openFragment(Charta c, int x, int y, int width, int height) {
+        if (x > c.getWidth() - width || y > c.getHeight() - height) {
+            return null;
         }
-        int imageDIBHeaderSize = validateBmpHeader(image);
-        is.readNBytes(imageDIBHeaderSize - 4);
+        return new FragmentDecoder(c, x, y, width, height, ingestPipeline.open(c, x, width), pyramid, metrics);
+    }
+
+    /**
+     * Writes the requested area of the charta to {@code os} as a 24-bit BMP.
+     * Pixels outside the charta are emitted black, nothing is written to disk.
+     */
+    public void readFragment(Charta c, int x, int y, int width, int height, OutputStream os) throws IOException {
+        long start = System.nanoTime();
+        writeBmp(c.getWidth(), c.getHeight(), (row, column, dst) -> storage.readRow(c, row, column, dst),
+                x, y, width, height, os);
+        metrics.recordStage(ChartaMetrics.STAGE_ROW_COPY, start);
+    }
 
-        int fragmentPadding = getPadding(width);
-        int chartaPadding = getPadding(c.getWidth());
+    /**
+     * Writes the requested area of the charta to {@code os} as a 24-bit PNG compressed by the shared compressor pool.
+     * Pixels outside the charta are emitted black.
+     */
+    public void readFragmentPng(Charta c, int x, int y, int width, int height, OutputStream os) throws IOException {
+        long start = System.nanoTime();
+        int visibleRowSize = Math.max(0, Math.min(width, c.getWidth() - x)) * PIXEL_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(13)
+                .putInt(width)
+                .putInt(height)
+                .put((byte) 8)
+                .put(PNG_COLOR_TYPE_RGB)
+                .put((byte) 0)
+                .put((byte) 0)
+                .put((byte) 0);
+        os.write(PNG_SIGNATURE);
+        PngChunkOutputStream.writeChunk(os, "IHDR".getBytes(StandardCharsets.US_ASCII), header.array(), header.capacity());
 
-        long offsetToFirstPx = ((long) (c.getHeight() - 1) * c.getWidth()) * PIXEL_SIZE + (long) (c.getHeight() - 1) * chartaPadding;
-        long offsetToStartOfNewData = ((long) c.getWidth() * (height + y - 1) - x) * PIXEL_SIZE + (long) chartaPadding * (height + y - 1);
+        PngChunkOutputStream idat = new PngChunkOutputStream(os, "IDAT");
+        ParallelDeflaterOutputStream compressed = compressor.zlib(idat);
+        byte[] pixels = new byte[width * PIXEL_SIZE];
+        byte[] scanline = new byte[width * PIXEL_SIZE + 1];
+        scanline[0] = PNG_FILTER_SUB;
+        // PNG rows go top-down and hold RGB, the sub filter stores each byte as the difference to its left neighbour
+        for (int chartaRow = y; chartaRow < y + height; chartaRow++) {
+            if (chartaRow < c.getHeight() && visibleRowSize > 0) {
+                storage.readRow(c, chartaRow, x, ByteBuffer.wrap(pixels, 0, visibleRowSize));
+            } else {
+                Arrays.fill(pixels, 0, visibleRowSize, (byte) 0);
+            }
+            for (int i = 0; i < pixels.length; i += PIXEL_SIZE) {
+                byte tmp = pixels[i];
+                pixels[i] = pixels[i + 2];
+                pixels[i + 2] = tmp;
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                scanline[i + 1] = (byte) (pixels[i] - (i < PIXEL_SIZE ? 0 : pixels[i - PIXEL_SIZE]));
+            }
+            compressed.write(scanline);
+        }
+        compressed.finish();
+        idat.flush();
+        PngChunkOutputStream.writeChunk(os, "IEND".getBytes(StandardCharsets.US_ASCII), new byte[0], 0);
+        metrics.recordStage(ChartaMetrics.STAGE_ENCODE, start);
+    }
 
-        chartaImage.seek(DIB_HEADER_SIZE + BITMAP_FILE_HEADER_SIZE + offsetToFirstPx - offsetToStartOfNewData);
+    /**
+     * Writes the requested area of the charta scaled down 2^{@code level} times to {@code os} as a 24-bit BMP.
+     * The area is given in coordinates of the level, so the cost depends on the output size only.
+     */
+    public void readPreview(Charta c, int level, int x, int y, int width, int height, OutputStream os) throws IOException {
+        if (level == 0) {
+            readFragment(c, x, y, width, height, os);
+            return;
+        }
+        pyramid.prepare(c);
+        writeBmp(MipmapPyramid.levelSize(c.getWidth(), level), MipmapPyramid.levelSize(c.getHeight(), level),
+                (row, column, dst) -> pyramid.readRow(c, level, row, column, dst), x, y, width, height, os);
+    }
+
+    private void writeBmp(int sourceWidth, int sourceHeight, RowSource source,
+                          int x, int y, int width, int height, OutputStream os) throws IOException {
+        int visibleRowSize = Math.max(0, Math.min(width, sourceWidth - x)) * PIXEL_SIZE;
+        int rowStride = getRowStride(width);
+        if (bands.isParallel((long) rowStride * height)) {
+            writeBmpBands(sourceHeight, visibleRowSize, source, x, y, width, height, os);
+            return;
+        }
+        WritableByteChannel out = Channels.newChannel(os);
+        ByteBuffer row = bufferPool.lease(rowStride);
         try {
+            row.put(BLACK_ROW, 0, rowStride);
+            os.write(createHeader(width, height).array());
+            // source and BMP rows are both stored bottom-up, so the source is read front to back.
+            // Rows below the source come first and go out as the zeroed buffer; later rows only
+            // overwrite the visible part, leaving the columns to the right of the source and the padding black
             for (int i = 0; i < height; i++) {
-                int t = is.readNBytes(image, 0, width * PIXEL_SIZE + fragmentPadding);
-                read += t;
-                chartaImage.write(image, 0, width * PIXEL_SIZE);
-                chartaImage.skipBytes((c.getWidth() - width) * PIXEL_SIZE + chartaPadding);
+                int sourceRow = y + height - 1 - i;
+                // an area starting right of the source has no visible columns to read
+                if (sourceRow < sourceHeight && visibleRowSize > 0) {
+                    row.limit(visibleRowSize).position(0);
+                    source.readRow(sourceRow, x, row);
+                }
+                row.limit(rowStride).position(0);
+                while (row.hasRemaining()) {
+                    out.write(row);
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
         } finally {
-            chartaImage.close();
+            bufferPool.release(row);
         }
-        return true;
     }
 
-    public BufferedImage readFragment(Charta c, int x, int y, int width, int height) throws IOException {
-        return (x + width > c.getWidth() || y + height > c.getHeight()) ?
-                readFragmentOutOfBounds(c, x, y, width, height) :
-                readFragmentInBounds(c, x, y, width, height);
+    /**
+     * Same as the sequential path of {@link #writeBmp}, but bands of rows are read concurrently,
+     * at most one band per worker ahead of the one being written.
+     */
+    private void writeBmpBands(int sourceHeight, int visibleRowSize, RowSource source,
+                               int x, int y, int width, int height, OutputStream os) throws IOException {
+        WritableByteChannel out = Channels.newChannel(os);
+        Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        try {
+            os.write(createHeader(width, height).array());
+            for (int first = 0; first < height; first += bands.getBandRows()) {
+                int bandFirst = first;
+                int bandRows = Math.min(bands.getBandRows(), height - first);
+                pending.add(bands.submit(() ->
+                        readBand(sourceHeight, visibleRowSize, source, x, y, width, height, bandFirst, bandRows)));
+                if (pending.size() > bands.getParallelism()) {
+                    writeBand(pending.remove(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeBand(pending.remove(), out);
+            }
+        } finally {
+            // a failed response still has to give back the buffers of bands read ahead
+            for (Future<ByteBuffer> future : pending) {
+                try {
+                    bufferPool.release(RowBandExecutor.await(future));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer readBand(int sourceHeight, int visibleRowSize, RowSource source,
+                                int x, int y, int width, int height, int first, int rows) throws IOException {
+        int rowStride = getRowStride(width);
+        ByteBuffer band = bufferPool.lease(rowStride * rows);
+        try {
+            for (int i = first; i < first + rows; i++) {
+                int sourceRow = y + height - 1 - i;
+                int offset = (i - first) * rowStride;
+                band.limit(offset + rowStride).position(offset);
+                band.put(BLACK_ROW, 0, rowStride);
+                if (sourceRow < sourceHeight && visibleRowSize > 0) {
+                    band.limit(offset + visibleRowSize).position(offset);
+                    source.readRow(sourceRow, x, band);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(band);
+            throw e;
+        }
+        return band.limit(rowStride * rows).position(0);
+    }
+
+    private void writeBand(Future<ByteBuffer> future, WritableByteChannel out) throws IOException {
+        ByteBuffer band = RowBandExecutor.await(future);
+        try {
+            while (band.hasRemaining()) {
+                out.write(band);
+            }
+        } finally {
+            bufferPool.release(band);
+        }
+    }
+
+    /**
+     * Reads several areas of the charta in a single pass and returns them as 24-bit BMPs in request order.
+     * Rows are visited in storage order and every charta row is read at most once, however many areas share it.
+     */
+    public List<byte[]> readFragments(Charta c, List<FragmentRegion> regions) throws IOException {
+        List<byte[]> fragments = new ArrayList<>(regions.size());
+        int top = Integer.MAX_VALUE;
+        int bottom = 0;
+        for (FragmentRegion r : regions) {
+            byte[] fragment = new byte[(int) getBmpFileSize(r.getWidth(), r.getHeight())];
+            createHeader(r.getWidth(), r.getHeight()).flip().get(fragment, 0, BITMAP_FILE_HEADER_SIZE + DIB_HEADER_SIZE);
+            fragments.add(fragment);
+            top = Math.min(top, r.getY());
+            bottom = Math.max(bottom, r.getY() + r.getHeight());
+        }
+
+        ByteBuffer row = bufferPool.lease(c.getWidth() * PIXEL_SIZE);
+        try {
+            for (int chartaRow = Math.min(bottom, c.getHeight()) - 1; chartaRow >= top; chartaRow--) {
+                int spanStart = Integer.MAX_VALUE;
+                int spanEnd = 0;
+                for (FragmentRegion r : regions) {
+                    if (r.containsRow(chartaRow)) {
+                        spanStart = Math.min(spanStart, r.getX());
+                        spanEnd = Math.max(spanEnd, Math.min(r.getX() + r.getWidth(), c.getWidth()));
+                    }
+                }
+                if (spanStart >= spanEnd) {
+                    continue;
+                }
+                row.limit((spanEnd - spanStart) * PIXEL_SIZE).position(0);
+                storage.readRow(c, chartaRow, spanStart, row);
+
+                for (int i = 0; i < regions.size(); i++) {
+                    FragmentRegion r = regions.get(i);
+                    int visibleRowSize = Math.min(r.getWidth(), c.getWidth() - r.getX()) * PIXEL_SIZE;
+                    if (!r.containsRow(chartaRow) || visibleRowSize <= 0) {
+                        continue;
+                    }
+                    int offset = BITMAP_FILE_HEADER_SIZE + DIB_HEADER_SIZE
+                            + (r.getY() + r.getHeight() - 1 - chartaRow) * getRowStride(r.getWidth());
+                    row.position((r.getX() - spanStart) * PIXEL_SIZE);
+                    row.get(fragments.get(i), offset, visibleRowSize);
+                }
+            }
+        } finally {
+            bufferPool.release(row);
+        }
+        return fragments;
+    }
+
+    public static long getBmpFileSize(int width, int height) {
+        return BITMAP_FILE_HEADER_SIZE + DIB_HEADER_SIZE + (long) getRowStride(width) * height;
     }
 
     public boolean deleteCharta(int id) {
         try {
-            Files.delete(StartupRunner.workDirResolve(id + ".json"));
-            Files.delete(StartupRunner.workDirResolve(id + ".bmp"));
+            storage.delete(id);
+            pyramid.delete(id);
         } catch (Exception e) {
             return false;
         }
@@ -100,85 +345,50 @@ public class ImageUtilsService {
     }
 
     public int validateBmpHeader(byte[] header) {
+        return dibHeaderSize(header);
+    }
+
+    /**
+     * Returns the DIB header size of a BMP starting with {@code header}, or -1 if it is not a BMP.
+     */
+    static int dibHeaderSize(byte[] header) {
         ByteBuffer byteBuffer = ByteBuffer.wrap(header).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
         char fileFormat = byteBuffer.getChar();
         if (fileFormat != BMP_TYPE) return -1;
         return byteBuffer.getInt(BITMAP_FILE_HEADER_SIZE);
     }
 
-    private BufferedImage readFragmentInBounds(Charta c, int x, int y, int width, int height) throws IOException {
-        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("bmp");
-        ImageReader reader = readers.next();
-        File img = StartupRunner.workDirResolve(c.getId() + ".bmp").toFile();
-        ImageInputStream iis = ImageIO.createImageInputStream(img);
-        reader.setInput(iis, true);
-        ImageReadParam irp = reader.getDefaultReadParam();
-        int imageIndex = 0;
-        Rectangle rect = new Rectangle(x, y, width, height);
-        irp.setSourceRegion(rect);
-        BufferedImage bi = reader.read(imageIndex, irp);
-        return bi;
-    }
-
-    private BufferedImage readFragmentOutOfBounds(Charta c, int x, int y, int width, int height) throws IOException {
-        createEmptyBMPfile(width, height, "-1");
-        BufferedImage restricted = readFragmentInBounds(c, x, y, width, height);
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        ImageIO.write(restricted, "bmp", os);
-        InputStream is = new ByteArrayInputStream(os.toByteArray());
-        Charta tmp = new Charta(-1, width, height);
-        appendToImage(tmp, is, -1, 0, 0, restricted.getWidth(), restricted.getHeight());
-        BufferedImage finalPiece = ImageIO.read(StartupRunner.workDirResolve("-1.bmp").toFile());
-        Files.deleteIfExists(StartupRunner.getPathToWorkingDirectory().resolve("-1.bmp"));
-        return finalPiece;
-    }
-
-    private boolean writeHeaderToFile(OutputStream fos, int width, int height) {
-        int imageSize = (PIXEL_SIZE * width + getPadding(width)) * height;
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(DIB_HEADER_SIZE + BITMAP_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
-            buffer.putChar(BMP_TYPE).
-                    putInt(DIB_HEADER_SIZE + BMP_RESERVED + imageSize).
-                    putInt(BMP_RESERVED).
-                    putInt(DIB_HEADER_SIZE + BITMAP_FILE_HEADER_SIZE).
-                    putInt(DIB_HEADER_SIZE).
-                    putInt(width).
-                    putInt(height).
-                    putChar(BMP_PLANES).
-                    putChar(COLOR_DEPTH).
-                    putInt(BMP_COMPRESSION).
-                    putInt(imageSize).
-                    putInt(PIXELS_PER_METER_WIDTH).
-                    putInt(PIXELS_PER_METER_HEIGHT).
-                    putInt(BMP_COLOR_USED).
-                    putInt(BMP_COLOR_IMPORTANT);
-            fos.write(buffer.array());
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+    static ByteBuffer createHeader(int width, int height) {
+        // sizes are unsigned 32-bit fields, so the largest chartas (~3 GB) still fit after the narrowing cast
+        long imageSize = (long) getRowStride(width) * height;
+        ByteBuffer buffer = ByteBuffer.allocate(DIB_HEADER_SIZE + BITMAP_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putChar(BMP_TYPE).
+                putInt((int) getBmpFileSize(width, height)).
+                putInt(BMP_RESERVED).
+                putInt(DIB_HEADER_SIZE + BITMAP_FILE_HEADER_SIZE).
+                putInt(DIB_HEADER_SIZE).
+                putInt(width).
+                putInt(height).
+                putChar(BMP_PLANES).
+                putChar(COLOR_DEPTH).
+                putInt(BMP_COMPRESSION).
+                putInt((int) imageSize).
+                putInt(PIXELS_PER_METER_WIDTH).
+                putInt(PIXELS_PER_METER_HEIGHT).
+                putInt(BMP_COLOR_USED).
+                putInt(BMP_COLOR_IMPORTANT);
+        return buffer;
     }
 
-    private boolean writeEmptyImage(OutputStream fos, int width, int height) {
-        try {
-            int padding = getPadding(width);
-            byte[] empty = new byte[width * 3];
-            byte[] paddingTrash = new byte[padding];
-            Arrays.fill(paddingTrash, (byte) 0xFF); // init with non-zero trash
-            for (int i = 0; i < height; i++) {
-                fos.write(empty);
-                fos.write(paddingTrash);
-            }
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+    static int getRowStride(int width) {
+        return width * PIXEL_SIZE + getPadding(width);
     }
 
-    private byte getPadding(int width) {
+    static byte getPadding(int width) {
         return (byte) ((DWORD_SIZE - (width * (COLOR_DEPTH / 8)) % DWORD_SIZE) % DWORD_SIZE);
     }
 
-}
\ No newline at end of file
+    private interface RowSource {
+        void readRow(int y, int x, ByteBuffer dst) throws IOException;
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.metrics.ChartaMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decouples receiving fragment rows and writing them to the charta storage.
+ * Each upload leases a bounded ring of pooled row buffers: the decoder fills them while writer threads
+ * drain full buffers into the storage. When every buffer is waiting for the disk, a blocking decoder waits
+ * and a non-blocking one stops until a writer frees a buffer; the time spent there is reported as backpressure.
+ */
+@Component
+public class IngestPipeline {
+
+    private final LongAdder backpressureWaits = new LongAdder();
+    private final LongAdder backpressureNanos = new LongAdder();
+    private final LongAdder buffersWritten = new LongAdder();
+
+    @Autowired
+    private ChartaStorage storage;
+
+    @Autowired
+    private DirectBufferPool bufferPool;
+
+    @Autowired
+    private ChartaMetrics metrics;
+
+    @Value("${chartographer.ingest.buffer-count:4}")
+    private int bufferCount;
+
+    @Value("${chartographer.ingest.buffer-size:262144}")
+    private int bufferSize;
+
+    @Value("${chartographer.ingest.writer-threads:2}")
+    private int writerThreads;
+
+    private ExecutorService writers;
+
+    @PostConstruct
+    private void start() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(writerThreads, r -> {
+            Thread thread = new Thread(r, "charta-writer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void stop() {
+        writers.shutdown();
+    }
+
+    /**
+     * Starts an upload of rows {@code width} pixels wide written at column {@code x} of the charta.
+     * The upload has to be closed before the caller releases its lock on the target rows.
+     */
+    public Upload open(Charta c, int x, int width) {
+        return new Upload(c, x, width * 3);
+    }
+
+    /**
+     * Number of times a reader had to wait for the disk to free a buffer.
+     */
+    public long getBackpressureWaits() {
+        return backpressureWaits.sum();
+    }
+
+    public long getBackpressureNanos() {
+        return backpressureNanos.sum();
+    }
+
+    public long getBuffersWritten() {
+        return buffersWritten.sum();
+    }
+
+    private static final class Chunk {
+        private final ByteBuffer data;
+        private final int[] rows;
+        private int count;
+
+        private Chunk(ByteBuffer data, int rowsPerChunk) {
+            this.data = data;
+            this.rows = new int[rowsPerChunk];
+        }
+    }
+
+    public final class Upload implements AutoCloseable {
+        private final Charta charta;
+        private final int x;
+        private final int rowSize;
+        private final int rowsPerChunk;
+        private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(bufferCount);
+        private final AtomicReference<IOException> failure = new AtomicReference<>();
+        private final AtomicReference<Runnable> onFree = new AtomicReference<>();
+        private int allocated;
+        private Chunk current;
+        private boolean closed;
+
+        private Upload(Charta charta, int x, int rowSize) {
+            this.charta = charta;
+            this.x = x;
+            this.rowSize = rowSize;
+            this.rowsPerChunk = Math.max(1, bufferSize / rowSize);
+        }
+
+        /**
+         * Returns the buffer to fill with the pixels of the next row, blocking while every buffer waits for the disk.
+         * The row is queued by {@link #commitRow} once the buffer has no space remaining.
+         */
+        public ByteBuffer beginRow() throws IOException {
+            if (current == null) {
+                current = nextChunk();
+            }
+            int offset = current.count * rowSize;
+            return current.data.limit(offset + rowSize).position(offset);
+        }
+
+        /**
+         * Tells whether {@link #beginRow} would return without waiting for the disk.
+         */
+        public boolean hasFreeBuffer() {
+            return current != null || allocated < bufferCount || !free.isEmpty();
+        }
+
+        /**
+         * Runs {@code callback} once {@link #hasFreeBuffer} holds, right away if it does,
+         * otherwise on the writer thread freeing a buffer.
+         */
+        public void whenFree(Runnable callback) {
+            long start = System.nanoTime();
+            Runnable resume = () -> {
+                backpressureWaits.increment();
+                backpressureNanos.add(System.nanoTime() - start);
+                callback.run();
+            };
+            onFree.set(resume);
+            // a buffer freed before the callback was set doesn't run it
+            if (hasFreeBuffer() && onFree.compareAndSet(resume, null)) {
+                callback.run();
+            }
+        }
+
+        /**
+         * Queues the row filled since the last {@link #beginRow} for row {@code y} of the charta.
+         */
+        public void commitRow(int y) {
+            current.rows[current.count++] = y;
+            if (current.count == rowsPerChunk) {
+                Chunk full = current;
+                current = null;
+                writers.execute(() -> write(full));
+            }
+        }
+
+        /**
+         * Writes the remaining rows and waits until every row of the upload is stored.
+         */
+        public void finish() throws IOException {
+            if (current != null) {
+                // the reader would wait for the writers anyway, so the last rows are written right here
+                Chunk last = current;
+                current = null;
+                write(last);
+            }
+            awaitWriters();
+            IOException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                if (current != null) {
+                    free.add(current);
+                    current = null;
+                }
+                awaitWriters();
+            }
+        }
+
+        private Chunk nextChunk() throws IOException {
+            IOException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+            Chunk chunk = free.poll();
+            if (chunk != null) {
+                return chunk;
+            }
+            if (allocated < bufferCount) {
+                allocated++;
+                return new Chunk(bufferPool.lease(rowsPerChunk * rowSize), rowsPerChunk);
+            }
+            long start = System.nanoTime();
+            try {
+                chunk = free.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for charta writes");
+            }
+            backpressureWaits.increment();
+            backpressureNanos.add(System.nanoTime() - start);
+            return chunk;
+        }
+
+        private void write(Chunk chunk) {
+            try {
+                if (failure.get() == null) {
+                    long start = System.nanoTime();
+                    ByteBuffer row = chunk.data.duplicate();
+                    for (int i = 0; i < chunk.count; i++) {
+                        row.limit(i * rowSize + rowSize).position(i * rowSize);
+                        storage.writeRow(charta, chunk.rows[i], x, row);
+                    }
+                    buffersWritten.increment();
+                    metrics.recordStage(ChartaMetrics.STAGE_ROW_WRITE, start);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e instanceof IOException ? (IOException) e : new IOException(e));
+            } finally {
+                chunk.count = 0;
+                free.add(chunk);
+                Runnable callback = onFree.getAndSet(null);
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        }
+
+        private void awaitWriters() throws InterruptedIOException {
+            closed = true;
+            try {
+                for (; allocated > 0; allocated--) {
+                    bufferPool.release(free.take().data);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for charta writes");
+            }
+        }
+    }
+}
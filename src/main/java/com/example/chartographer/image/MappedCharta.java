@@ -0,0 +1,103 @@
+package com.example.chartographer.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Memory-mapped pixel array of a charta BMP file.
+ * The file is mapped in windows made of whole rows, so a row never crosses a window boundary
+ * and chartas larger than 2 GB are still addressable. Windows written since the last {@link #force()}
+ * are tracked, so a force after a small fragment syncs only the window holding its rows.
+ */
+public class MappedCharta implements Closeable {
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private final int width;
+    private final int height;
+    private final int rowStride;
+    private final int rowsPerWindow;
+    private final MappedByteBuffer[] windows;
+    private final AtomicIntegerArray dirty;
+
+    public MappedCharta(Path bmp, int width, int height, long pixelArrayOffset, int rowStride) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.rowsPerWindow = (int) Math.max(1, MAX_WINDOW_SIZE / rowStride);
+        this.windows = new MappedByteBuffer[(height + rowsPerWindow - 1) / rowsPerWindow];
+        this.dirty = new AtomicIntegerArray(windows.length);
+        try (FileChannel channel = FileChannel.open(bmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < windows.length; i++) {
+                int rows = Math.min(rowsPerWindow, height - i * rowsPerWindow);
+                long position = pixelArrayOffset + (long) i * rowsPerWindow * rowStride;
+                windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) rows * rowStride);
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Copies the remaining BGR pixel data of {@code src} into row {@code y} (counting from the top) starting at column {@code x}.
+     */
+    public void writeRow(int y, int x, ByteBuffer src) {
+        rowView(y, x).put(src);
+        // marked after the copy, so a force clearing the mark has the row to sync
+        dirty.set((height - 1 - y) / rowsPerWindow, 1);
+    }
+
+    /**
+     * Fills the remaining space of {@code dst} with BGR pixel data of row {@code y} (counting from the top) starting at column {@code x}.
+     */
+    public void readRow(int y, int x, ByteBuffer dst) {
+        ByteBuffer view = rowView(y, x);
+        view.limit(view.position() + dst.remaining());
+        dst.put(view);
+    }
+
+    /**
+     * Syncs the windows written since the previous force. A row written meanwhile marks its window again.
+     */
+    public void force() {
+        for (int i = 0; i < windows.length; i++) {
+            if (dirty.getAndSet(i, 0) != 0) {
+                windows[i].force();
+            }
+        }
+    }
+
+    /**
+     * Syncs the windows still marked written, since a later mapping of the file doesn't know about them,
+     * and drops the windows. A mapping cannot be unmapped explicitly, the garbage collector releases it
+     * once the last view is gone.
+     */
+    @Override
+    public void close() {
+        force();
+        Arrays.fill(windows, null);
+    }
+
+    /**
+     * Returns a private view positioned at column {@code x} of row {@code y} (counting from the top).
+     * Views are independent, so concurrent callers never share a buffer position.
+     */
+    private ByteBuffer rowView(int y, int x) {
+        int fileRow = height - 1 - y;
+        ByteBuffer view = windows[fileRow / rowsPerWindow].duplicate();
+        view.position((fileRow % rowsPerWindow) * rowStride + x * 3);
+        return view;
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.config.StartupRunner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Downscaled copies of every charta used for previews. Level {@code L} is the charta scaled down 2^L times
+ * with a 2x2 box filter, stored as raw top-down BGR rows in {@code {id}.mip{L}}.
+ * Saving a fragment recomputes only the pixels of each level covering it.
+ * The open level files of a charta are kept in a bounded {@link HandleCache}.
+ */
+@Component
+public class MipmapPyramid {
+    private static final int PIXEL_SIZE = 3;
+
+    @Autowired
+    private ChartaStorage storage;
+
+    @Autowired
+    private RowBandExecutor bands;
+
+    @Autowired
+    private ChartaHandles handles;
+
+    @Value("${chartographer.preview.levels:8}")
+    private int maxLevels;
+
+    private HandleCache<Levels> pyramids;
+
+    @PostConstruct
+    private void start() {
+        pyramids = handles.create(c -> new Levels(c, getLevelCount(c)));
+    }
+
+    /**
+     * Number of downscaled levels kept for the charta, the last one is 1x1 unless the configured limit is reached.
+     */
+    public int getLevelCount(Charta c) {
+        int count = 0;
+        while (count < maxLevels && (levelSize(c.getWidth(), count) > 1 || levelSize(c.getHeight(), count) > 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    public static int levelSize(int size, int level) {
+        return (size + (1 << level) - 1) >> level;
+    }
+
+    public void create(Charta c) throws IOException {
+        for (int level = 1; level <= getLevelCount(c); level++) {
+            createLevelFile(levelPath(c.getId(), level), levelSize(c.getWidth(), level), levelSize(c.getHeight(), level));
+        }
+    }
+
+    /**
+     * Recomputes the pixels of every level covering the given area of the charta.
+     * The caller must hold the write lock of the area's rows.
+     */
+    public void update(Charta c, int x, int y, int width, int height) throws IOException {
+        try (HandleCache.Lease<Levels> lease = pyramids.acquire(c)) {
+            Levels levels = lease.get();
+            synchronized (levels) {
+                levels.rebuildIfNeeded();
+                levels.update(x, y, Math.min(x + width, c.getWidth()), Math.min(y + height, c.getHeight()));
+            }
+        }
+    }
+
+    /**
+     * Builds the levels of a charta created before previews existed. Has to be called before reading its rows.
+     */
+    public void prepare(Charta c) throws IOException {
+        try (HandleCache.Lease<Levels> lease = pyramids.acquire(c)) {
+            Levels levels = lease.get();
+            synchronized (levels) {
+                levels.rebuildIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Reads {@code dst.remaining()} bytes of row {@code y} of the level, starting at column {@code x}.
+     */
+    public void readRow(Charta c, int level, int y, int x, ByteBuffer dst) throws IOException {
+        try (HandleCache.Lease<Levels> levels = pyramids.acquire(c)) {
+            readFully(levels.get().channels[level - 1], dst, ((long) y * levelSize(c.getWidth(), level) + x) * PIXEL_SIZE);
+        }
+    }
+
+    /**
+     * Writes the levels of the charta through to the disk. Levels that aren't open were synced when they
+     * were closed, so they aren't reopened, which also leaves the files of a removed charta alone.
+     */
+    public void force(Charta c) throws IOException {
+        HandleCache.Lease<Levels> levels = pyramids.acquireIfOpen(c.getId());
+        if (levels == null) {
+            return;
+        }
+        try (levels) {
+            levels.get().force();
+        }
+    }
+
+    public void delete(int id) throws IOException {
+        pyramids.invalidate(id);
+        int level = 1;
+        while (Files.deleteIfExists(levelPath(id, level))) {
+            level++;
+        }
+    }
+
+    private static void createLevelFile(Path path, int width, int height) throws IOException {
+        // left sparse like the charta itself, an unwritten level is black
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(1), (long) width * height * PIXEL_SIZE - 1);
+            channel.force(true);
+        }
+    }
+
+    private static Path levelPath(int id, int level) {
+        return StartupRunner.workDirResolve(id + ".mip" + level);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of mipmap level");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private final class Levels implements Closeable {
+        private final Charta charta;
+        private final FileChannel[] channels;
+        private boolean rebuildNeeded;
+        private volatile boolean written;
+
+        private Levels(Charta charta, int count) throws IOException {
+            this.charta = charta;
+            this.channels = new FileChannel[count];
+            for (int level = 1; level <= count; level++) {
+                Path path = levelPath(charta.getId(), level);
+                if (!Files.exists(path)) {
+                    // the charta was created before previews existed
+                    createLevelFile(path, levelSize(charta.getWidth(), level), levelSize(charta.getHeight(), level));
+                    rebuildNeeded = true;
+                }
+                channels[level - 1] = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        }
+
+        private void rebuildIfNeeded() throws IOException {
+            if (rebuildNeeded) {
+                rebuildNeeded = false;
+                update(0, 0, charta.getWidth(), charta.getHeight());
+            }
+        }
+
+        /**
+         * Recomputes the area [left, right) x [top, bottom) of the charta level by level,
+         * each level reading the one above it. Large levels are recomputed in parallel row bands.
+         */
+        private void update(int left, int top, int right, int bottom) throws IOException {
+            if (left >= right || top >= bottom) {
+                return;
+            }
+            for (int level = 1; level <= channels.length; level++) {
+                left >>= 1;
+                top >>= 1;
+                right = (right + 1) >> 1;
+                bottom = (bottom + 1) >> 1;
+                int levelLeft = left;
+                int levelRight = right;
+                int levelNumber = level;
+                // every level row reads two rows of the level above
+                if (bands.isParallel(4L * (right - left) * (bottom - top) * PIXEL_SIZE)) {
+                    bands.forEachBand(top, bottom, (from, to) -> updateRows(levelNumber, levelLeft, levelRight, from, to));
+                } else {
+                    updateRows(level, left, right, top, bottom);
+                }
+            }
+        }
+
+        private void updateRows(int level, int left, int right, int top, int bottom) throws IOException {
+            int sourceWidth = levelSize(charta.getWidth(), level - 1);
+            int sourceHeight = levelSize(charta.getHeight(), level - 1);
+            int sourceLeft = left * 2;
+            int sourceRight = Math.min(right * 2, sourceWidth);
+            int sourceRowSize = (sourceRight - sourceLeft) * PIXEL_SIZE;
+            ByteBuffer upper = ByteBuffer.allocate(sourceRowSize);
+            ByteBuffer lower = ByteBuffer.allocate(sourceRowSize);
+            ByteBuffer result = ByteBuffer.allocate((right - left) * PIXEL_SIZE);
+            for (int y = top; y < bottom; y++) {
+                boolean twoRows = y * 2 + 1 < sourceHeight;
+                readSourceRow(level - 1, y * 2, sourceLeft, upper.clear());
+                if (twoRows) {
+                    readSourceRow(level - 1, y * 2 + 1, sourceLeft, lower.clear());
+                }
+                result.clear();
+                for (int x = 0; x < right - left; x++) {
+                    boolean twoColumns = sourceLeft + x * 2 + 1 < sourceRight;
+                    int samples = (twoRows ? 2 : 1) * (twoColumns ? 2 : 1);
+                    for (int component = 0; component < PIXEL_SIZE; component++) {
+                        int i = x * 2 * PIXEL_SIZE + component;
+                        int sum = (upper.get(i) & 0xFF)
+                                + (twoColumns ? upper.get(i + PIXEL_SIZE) & 0xFF : 0)
+                                + (twoRows ? lower.get(i) & 0xFF : 0)
+                                + (twoRows && twoColumns ? lower.get(i + PIXEL_SIZE) & 0xFF : 0);
+                        result.put(x * PIXEL_SIZE + component, (byte) ((sum + samples / 2) / samples));
+                    }
+                }
+                writeFully(channels[level - 1], result,
+                        ((long) y * levelSize(charta.getWidth(), level) + left) * PIXEL_SIZE);
+                // marked after the write, so a force clearing the mark has the row to sync
+                written = true;
+            }
+        }
+
+        private void readSourceRow(int level, int y, int x, ByteBuffer dst) throws IOException {
+            if (level == 0) {
+                storage.readRow(charta, y, x, dst);
+            } else {
+                readFully(channels[level - 1], dst, ((long) y * levelSize(charta.getWidth(), level) + x) * PIXEL_SIZE);
+            }
+        }
+
+        /**
+         * Syncs the levels if they were written since the previous sync. A write meanwhile marks them again.
+         */
+        private void force() throws IOException {
+            if (!written) {
+                return;
+            }
+            written = false;
+            for (FileChannel channel : channels) {
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Syncs the levels before closing them, since {@link MipmapPyramid#force} doesn't reopen them.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                force();
+            } finally {
+                for (FileChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+    }
+}
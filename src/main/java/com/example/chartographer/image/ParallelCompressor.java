@@ -0,0 +1,60 @@
+package com.example.chartographer.image;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool compressing response bodies, see {@link ParallelDeflaterOutputStream}.
+ */
+@Component
+public class ParallelCompressor {
+
+    @Value("${chartographer.encoding.threads:0}")
+    private int threads;
+
+    @Value("${chartographer.encoding.block-size:262144}")
+    private int blockSize;
+
+    @Value("${chartographer.encoding.level:6}")
+    private int level;
+
+    private ExecutorService compressors;
+
+    @PostConstruct
+    private void start() {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        compressors = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "charta-compressor-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void stop() {
+        compressors.shutdown();
+    }
+
+    public ParallelDeflaterOutputStream gzip(OutputStream out) {
+        return open(out, ParallelDeflaterOutputStream.Format.GZIP);
+    }
+
+    public ParallelDeflaterOutputStream zlib(OutputStream out) {
+        return open(out, ParallelDeflaterOutputStream.Format.ZLIB);
+    }
+
+    private ParallelDeflaterOutputStream open(OutputStream out, ParallelDeflaterOutputStream.Format format) {
+        // a couple of blocks per thread keep every compressor busy without buffering the whole response
+        return new ParallelDeflaterOutputStream(out, format, compressors, blockSize, level, threads * 2);
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the written data in blocks compressed concurrently by an executor and writes them out in order.
+ * Every block but the last one ends with a sync flush, so the concatenated blocks form a single deflate stream;
+ * each block is primed with the tail of the previous one, which keeps the ratio close to a sequential deflater.
+ * Checksums of the uncompressed data are computed by the writing thread.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+    private static final int DICTIONARY_SIZE = 32768;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+
+    public enum Format {
+        GZIP, ZLIB
+    }
+
+    private final OutputStream out;
+    private final Format format;
+    private final ExecutorService executor;
+    private final int level;
+    private final int maxPending;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private final Checksum checksum;
+    private byte[] block;
+    private byte[] previous;
+    private int count;
+    private long totalIn;
+    private boolean headerWritten;
+    private boolean finished;
+
+    public ParallelDeflaterOutputStream(OutputStream out, Format format, ExecutorService executor,
+                                        int blockSize, int level, int maxPending) {
+        this.out = out;
+        this.format = format;
+        this.executor = executor;
+        this.level = level;
+        this.maxPending = maxPending;
+        this.checksum = format == Format.GZIP ? new CRC32() : new Adler32();
+        this.block = new byte[Math.max(blockSize, DICTIONARY_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == block.length) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Compresses the remaining data and writes the stream trailer, leaving the underlying stream open.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        submit(true);
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        ByteBuffer trailer;
+        if (format == Format.GZIP) {
+            trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) checksum.getValue())
+                    .putInt((int) totalIn);
+        } else {
+            trailer = ByteBuffer.allocate(4).putInt((int) checksum.getValue());
+        }
+        out.write(trailer.array());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        if (!headerWritten) {
+            headerWritten = true;
+            out.write(format == Format.GZIP ? GZIP_HEADER : ZLIB_HEADER);
+        }
+        checksum.update(block, 0, count);
+        totalIn += count;
+        byte[] data = block;
+        byte[] dictionary = previous;
+        int length = count;
+        pending.add(executor.submit(() -> deflate(data, length, dictionary, last)));
+        previous = block;
+        block = last ? null : new byte[block.length];
+        count = 0;
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] output = new byte[length + length / 1000 + 64];
+            int size = 0;
+            while (true) {
+                if (size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += last ? deflater.deflate(output, size, output.length - size)
+                        : deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+                // a sync flush is complete once it no longer fills the whole output
+                if (last ? deflater.finished() : size < output.length) {
+                    return Arrays.copyOf(output, size);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.remove().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Writes everything written to it as a sequence of PNG chunks of one type, e.g. the IDAT chunks of an image.
+ */
+class PngChunkOutputStream extends OutputStream {
+    private static final int MAX_CHUNK_SIZE = 65536;
+
+    private final OutputStream out;
+    private final byte[] type;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    private int count;
+
+    PngChunkOutputStream(OutputStream out, String type) {
+        this.out = out;
+        this.type = type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static void writeChunk(OutputStream out, byte[] type, byte[] data, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, 0, length);
+        out.write(ByteBuffer.allocate(4).putInt(length).array());
+        out.write(type);
+        out.write(data, 0, length);
+        out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buffer.length) {
+                flushChunk();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered data as a last chunk, leaving the underlying stream open.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    private void flushChunk() throws IOException {
+        if (count > 0) {
+            writeChunk(out, type, buffer, count);
+            count = 0;
+        }
+    }
+}
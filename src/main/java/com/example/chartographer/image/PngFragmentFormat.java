@@ -0,0 +1,304 @@
+package com.example.chartographer.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Non-interlaced 8-bit RGB and RGBA PNGs. The image data is inflated as its chunks arrive, and each scanline
+ * is unfiltered against the previous one and converted to BGR, dropping the alpha channel.
+ */
+final class PngFragmentFormat implements FragmentDecoder.Format {
+    private static final int SIGNATURE_SIZE = 8;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int CRC_SIZE = 4;
+    private static final int IHDR_SIZE = 13;
+    private static final int IHDR = chunkType("IHDR");
+    private static final int IDAT = chunkType("IDAT");
+    private static final int IEND = chunkType("IEND");
+    private static final int PLTE = chunkType("PLTE");
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_RGBA = 6;
+    private static final int PIXEL_SIZE = 3;
+
+    private enum State {
+        SIGNATURE, CHUNK_HEADER, CHUNK_DATA, CHUNK_CRC, DONE
+    }
+
+    private final FragmentDecoder decoder;
+    private final int width;
+    private final int height;
+    private final ByteBuffer small = ByteBuffer.allocate(IHDR_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private final Inflater inflater = new Inflater();
+    private State state = State.SIGNATURE;
+    private int chunkType;
+    private long chunkRemaining;
+    private boolean headerRead;
+    private int bytesPerPixel;
+    private byte[] line;
+    private byte[] previous;
+    private byte[] bgr;
+    private int lineFill;
+    // the inflater still holds data, or a complete line waits for a free row
+    private boolean resume;
+    private int row;
+    private boolean closed;
+
+    PngFragmentFormat(FragmentDecoder decoder, int width, int height) {
+        this.decoder = decoder;
+        this.width = width;
+        this.height = height;
+        small.limit(SIGNATURE_SIZE);
+    }
+
+    @Override
+    public boolean feed(ByteBuffer src) throws IOException {
+        if (resume && !inflate()) {
+            return false;
+        }
+        while (src.hasRemaining() && state != State.DONE && !decoder.isStalled()) {
+            switch (state) {
+                case SIGNATURE:
+                    // checked by the decoder
+                    if (fill(src)) {
+                        small.clear().limit(CHUNK_HEADER_SIZE);
+                        state = State.CHUNK_HEADER;
+                    }
+                    break;
+                case CHUNK_HEADER:
+                    if (fill(src) && !startChunk()) {
+                        return false;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    if (!readChunkData(src)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (fill(src)) {
+                        if ((int) crc.getValue() != small.getInt(0)) {
+                            return false;
+                        }
+                        small.clear().limit(CHUNK_HEADER_SIZE);
+                        state = State.CHUNK_HEADER;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+        }
+    }
+
+    private static int chunkType(String name) {
+        return ByteBuffer.wrap(name.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    /**
+     * Copies data into {@code small} up to its limit.
+     *
+     * @return true once it is full
+     */
+    private boolean fill(ByteBuffer src) {
+        int n = Math.min(small.remaining(), src.remaining());
+        ByteBuffer piece = src.duplicate();
+        piece.limit(piece.position() + n);
+        small.put(piece);
+        src.position(src.position() + n);
+        return !small.hasRemaining();
+    }
+
+    private boolean startChunk() {
+        long length = Integer.toUnsignedLong(small.getInt(0));
+        chunkType = small.getInt(4);
+        if (length > Integer.MAX_VALUE || headerRead == (chunkType == IHDR) || chunkType == IHDR && length != IHDR_SIZE) {
+            return false;
+        }
+        if (chunkType == IEND) {
+            // the image data ended before the last row
+            return false;
+        }
+        boolean ancillary = (small.get(4) & 0x20) != 0;
+        if (!ancillary && chunkType != IHDR && chunkType != IDAT && chunkType != PLTE) {
+            return false;
+        }
+        crc.reset();
+        crc.update(small.array(), 4, 4);
+        chunkRemaining = length;
+        small.clear().limit(chunkType == IHDR ? IHDR_SIZE : 0);
+        state = State.CHUNK_DATA;
+        if (length == 0) {
+            endChunk();
+        }
+        return true;
+    }
+
+    private boolean readChunkData(ByteBuffer src) throws IOException {
+        int n = (int) Math.min(chunkRemaining, src.remaining());
+        ByteBuffer data = src.duplicate();
+        data.limit(data.position() + n);
+        crc.update(data.duplicate());
+        src.position(src.position() + n);
+        chunkRemaining -= n;
+        if (chunkType == IHDR) {
+            small.put(data);
+            if (chunkRemaining == 0 && !readImageHeader()) {
+                return false;
+            }
+        } else if (chunkType == IDAT && !inflate(data)) {
+            return false;
+        }
+        if (chunkRemaining == 0 && state == State.CHUNK_DATA) {
+            endChunk();
+        }
+        return true;
+    }
+
+    private void endChunk() {
+        small.clear().limit(CRC_SIZE);
+        state = State.CHUNK_CRC;
+    }
+
+    private boolean readImageHeader() {
+        headerRead = true;
+        int colorType = small.get(9);
+        if (small.getInt(0) != width || small.getInt(4) != height || small.get(8) != 8
+                || colorType != COLOR_RGB && colorType != COLOR_RGBA
+                || small.get(10) != 0 || small.get(11) != 0 || small.get(12) != 0) {
+            return false;
+        }
+        bytesPerPixel = colorType == COLOR_RGBA ? 4 : 3;
+        // the filter type byte comes first
+        line = new byte[1 + width * bytesPerPixel];
+        previous = new byte[line.length];
+        bgr = new byte[width * PIXEL_SIZE];
+        return true;
+    }
+
+    private boolean inflate(ByteBuffer data) throws IOException {
+        inflater.setInput(data);
+        return inflate();
+    }
+
+    /**
+     * Inflates the input set last into rows, stopping early if no row can begin.
+     */
+    private boolean inflate() throws IOException {
+        resume = false;
+        try {
+            while (state != State.DONE) {
+                if (lineFill == line.length) {
+                    if (!decoder.canBeginRow()) {
+                        // the input stays in the inflater, so the data fed has to stay unchanged
+                        resume = true;
+                        break;
+                    }
+                    if (!readLine()) {
+                        return false;
+                    }
+                    continue;
+                }
+                int n = inflater.inflate(line, lineFill, line.length - lineFill);
+                lineFill += n;
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        // the image data ended before the last row
+                        return false;
+                    }
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean readLine() throws IOException {
+        if (!unfilter()) {
+            return false;
+        }
+        for (int i = 1, j = 0; j < bgr.length; i += bytesPerPixel, j += PIXEL_SIZE) {
+            bgr[j] = line[i + 2];
+            bgr[j + 1] = line[i + 1];
+            bgr[j + 2] = line[i];
+        }
+        decoder.beginRow().put(bgr);
+        decoder.commitRow(row);
+        byte[] filtered = previous;
+        previous = line;
+        line = filtered;
+        lineFill = 0;
+        if (++row == height) {
+            // the rest of the file is ignored, like data following a BMP
+            state = State.DONE;
+            close();
+        }
+        return true;
+    }
+
+    private boolean unfilter() {
+        int bpp = bytesPerPixel;
+        byte[] cur = line;
+        byte[] prev = previous;
+        switch (cur[0]) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 1 + bpp; i < cur.length; i++) {
+                    cur[i] += cur[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 1; i < cur.length; i++) {
+                    cur[i] += prev[i];
+                }
+                break;
+            case 3:
+                for (int i = 1; i < cur.length; i++) {
+                    int left = i > bpp ? cur[i - bpp] & 0xFF : 0;
+                    cur[i] += (left + (prev[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = 1; i < cur.length; i++) {
+                    int a = i > bpp ? cur[i - bpp] & 0xFF : 0;
+                    int b = prev[i] & 0xFF;
+                    int c = i > bpp ? prev[i - bpp] & 0xFF : 0;
+                    cur[i] += paeth(a, b, c);
+                }
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+}
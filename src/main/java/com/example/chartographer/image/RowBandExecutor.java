@@ -0,0 +1,126 @@
+package com.example.chartographer.image;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits large pixel operations into bands of rows processed concurrently.
+ * Every band uses its own buffers and positional I/O, so bands never share a file position.
+ * Operations smaller than the threshold stay on the calling thread.
+ */
+@Component
+public class RowBandExecutor {
+
+    @Value("${chartographer.bands.rows:64}")
+    private int bandRows;
+
+    @Value("${chartographer.bands.parallelism:0}")
+    private int parallelism;
+
+    @Value("${chartographer.bands.threshold-bytes:4194304}")
+    private long thresholdBytes;
+
+    private ExecutorService workers;
+
+    @PostConstruct
+    private void start() {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "charta-band-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private void stop() {
+        workers.shutdown();
+    }
+
+    public int getBandRows() {
+        return bandRows;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Whether an operation touching {@code bytes} bytes of pixels should be split into bands.
+     */
+    public boolean isParallel(long bytes) {
+        return parallelism > 1 && bytes >= thresholdBytes;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return workers.submit(task);
+    }
+
+    /**
+     * Runs {@code band} for consecutive bands of the rows [from, to) and waits for all of them.
+     */
+    public void forEachBand(int from, int to, Band band) throws IOException {
+        List<Future<Void>> bands = new ArrayList<>();
+        for (int start = from; start < to; start += bandRows) {
+            int bandStart = start;
+            int bandEnd = Math.min(start + bandRows, to);
+            bands.add(workers.submit(() -> {
+                band.process(bandStart, bandEnd);
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<Void> future : bands) {
+            try {
+                await(future);
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for a band and unwraps its failure.
+     */
+    public static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a row band");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public interface Band {
+        void process(int from, int to) throws IOException;
+    }
+}
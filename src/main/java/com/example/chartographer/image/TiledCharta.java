@@ -0,0 +1,180 @@
+package com.example.chartographer.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Charta kept as square tiles in a single container file.
+ * The file starts with a header and a table holding the file offset of every tile; tiles are appended
+ * on their first write, and a tile that was never written reads as black.
+ * Tile rows are stored top-down as 24-bit BGR pixels without padding.
+ */
+public class TiledCharta implements Closeable {
+    private static final int MAGIC = 0x4C495443; // "CTIL"
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int PIXEL_SIZE = 3;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int columns;
+    private final AtomicLongArray tileOffsets;
+    private final ByteBuffer blackRow;
+    private long end;
+
+    private TiledCharta(FileChannel channel, int width, int height, int tileSize, long[] tileOffsets) throws IOException {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.tileOffsets = new AtomicLongArray(tileOffsets);
+        this.blackRow = ByteBuffer.allocate(tileSize * PIXEL_SIZE).asReadOnlyBuffer();
+        this.end = Math.max(channel.size(), tableEnd(tileOffsets.length));
+    }
+
+    /**
+     * Writes an empty container: the header and a table of unallocated tiles.
+     */
+    public static void create(Path path, int width, int height, int tileSize) throws IOException {
+        int tiles = tileCount(width, height, tileSize);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(MAGIC).putInt(width).putInt(height).putInt(tileSize);
+            writeFully(channel, header.flip(), 0);
+            // a zero table means no tile is allocated, extending the file leaves it as a hole
+            writeFully(channel, ByteBuffer.allocate(1), tableEnd(tiles) - 1);
+            channel.force(true);
+        }
+    }
+
+    public static TiledCharta open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a tiled charta: " + path);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int tileSize = header.getInt();
+            ByteBuffer table = ByteBuffer.allocate(tileCount(width, height, tileSize) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, table, HEADER_SIZE);
+            long[] tileOffsets = new long[table.capacity() / Long.BYTES];
+            table.flip().asLongBuffer().get(tileOffsets);
+            return new TiledCharta(channel, width, height, tileSize, tileOffsets);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void writeRow(int y, int x, ByteBuffer src) throws IOException {
+        int end = src.limit();
+        int tileRow = y / tileSize;
+        int column = x;
+        while (src.hasRemaining()) {
+            int xInTile = column % tileSize;
+            int bytes = Math.min(src.remaining(), (tileSize - xInTile) * PIXEL_SIZE);
+            long tile = allocatedTile(tileRow * columns + column / tileSize);
+            src.limit(src.position() + bytes);
+            writeFully(channel, src, tile + pixelOffset(xInTile, y % tileSize));
+            src.limit(end);
+            column += bytes / PIXEL_SIZE;
+        }
+    }
+
+    public void readRow(int y, int x, ByteBuffer dst) throws IOException {
+        int end = dst.limit();
+        int tileRow = y / tileSize;
+        int column = x;
+        while (dst.hasRemaining()) {
+            int xInTile = column % tileSize;
+            int bytes = Math.min(dst.remaining(), (tileSize - xInTile) * PIXEL_SIZE);
+            long tile = tileOffsets.get(tileRow * columns + column / tileSize);
+            dst.limit(dst.position() + bytes);
+            if (tile == 0) {
+                dst.put(blackRow.duplicate().limit(bytes));
+            } else {
+                readFully(channel, dst, tile + pixelOffset(xInTile, y % tileSize));
+            }
+            dst.limit(end);
+            column += bytes / PIXEL_SIZE;
+        }
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long allocatedTile(int index) throws IOException {
+        long tile = tileOffsets.get(index);
+        if (tile != 0) {
+            return tile;
+        }
+        synchronized (this) {
+            tile = tileOffsets.get(index);
+            if (tile == 0) {
+                tile = end;
+                long tileBytes = (long) tileSize * tileSize * PIXEL_SIZE;
+                writeFully(channel, ByteBuffer.allocate(1), tile + tileBytes - 1);
+                ByteBuffer entry = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(0, tile);
+                writeFully(channel, entry, HEADER_SIZE + (long) index * Long.BYTES);
+                end += tileBytes;
+                tileOffsets.set(index, tile);
+            }
+            return tile;
+        }
+    }
+
+    private long pixelOffset(int xInTile, int yInTile) {
+        return ((long) yInTile * tileSize + xInTile) * PIXEL_SIZE;
+    }
+
+    private static int tileCount(int width, int height, int tileSize) {
+        return ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+    }
+
+    private static long tableEnd(int tiles) {
+        return HEADER_SIZE + (long) tiles * Long.BYTES;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of tiled charta");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.config.StartupRunner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Optional engine keeping every charta as lazily allocated tiles, see {@link TiledCharta}.
+ * Reads and writes only touch the tiles intersecting the requested rows, and creating a charta costs
+ * the tile table only. Open containers are kept in a bounded {@link HandleCache}.
+ * Enabled with {@code chartographer.storage.engine=tiled}.
+ */
+@Component
+@ConditionalOnProperty(name = "chartographer.storage.engine", havingValue = "tiled")
+public class TiledChartaStorage implements ChartaStorage {
+
+    @Autowired
+    private ChartaHandles handles;
+
+    @Value("${chartographer.storage.tile-size:256}")
+    private int tileSize;
+
+    private HandleCache<TiledCharta> tiledChartas;
+
+    @PostConstruct
+    private void start() {
+        tiledChartas = handles.create(c -> TiledCharta.open(tilesPath(c.getId())));
+    }
+
+    @Override
+    public void create(Charta c) throws IOException {
+        TiledCharta.create(tilesPath(c.getId()), c.getWidth(), c.getHeight(), tileSize);
+    }
+
+    @Override
+    public void writeRow(Charta c, int y, int x, ByteBuffer src) throws IOException {
+        try (HandleCache.Lease<TiledCharta> tiledCharta = tiledChartas.acquire(c)) {
+            tiledCharta.get().writeRow(y, x, src);
+        }
+    }
+
+    @Override
+    public void readRow(Charta c, int y, int x, ByteBuffer dst) throws IOException {
+        try (HandleCache.Lease<TiledCharta> tiledCharta = tiledChartas.acquire(c)) {
+            tiledCharta.get().readRow(y, x, dst);
+        }
+    }
+
+    @Override
+    public void force(Charta c) throws IOException {
+        try (HandleCache.Lease<TiledCharta> tiledCharta = tiledChartas.acquire(c)) {
+            tiledCharta.get().force();
+        }
+    }
+
+    @Override
+    public boolean exists(int id) {
+        return Files.exists(tilesPath(id));
+    }
+
+    @Override
+    public void delete(int id) throws IOException {
+        tiledChartas.invalidate(id);
+        Files.delete(tilesPath(id));
+    }
+
+    private Path tilesPath(int id) {
+        return StartupRunner.workDirResolve(id + ".tiles");
+    }
+}
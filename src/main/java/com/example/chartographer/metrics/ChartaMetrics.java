@@ -0,0 +1,65 @@
+package com.example.chartographer.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of the steps of charta requests, published with percentile histograms.
+ * Whole requests are measured by the standard {@code http.server.requests} timer.
+ * <ul>
+ *     <li>{@code charta.stage} - a step of a request, e.g. reading rows from the network or saving metadata</li>
+ *     <li>{@code charta.bytes} - image bytes received or sent per request, tagged with the operation and direction</li>
+ * </ul>
+ * Durations are passed as {@link System#nanoTime()} start values.
+ */
+@Component
+public class ChartaMetrics {
+    public static final String STAGE_METADATA_LOAD = "metadata.load";
+    public static final String STAGE_METADATA_SAVE = "metadata.save";
+    public static final String STAGE_HEADER_VALIDATE = "header.validate";
+    public static final String STAGE_ROW_READ = "row.read";
+    public static final String STAGE_ROW_WRITE = "row.write";
+    public static final String STAGE_ROW_COPY = "row.copy";
+    public static final String STAGE_ENCODE = "encode";
+    public static final String STAGE_PREVIEW_UPDATE = "preview.update";
+    public static final String STAGE_JOURNAL_COMMIT = "journal.commit";
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    @Autowired
+    private MeterRegistry registry;
+
+    public void recordStage(String stage, long startNanos) {
+        timers.computeIfAbsent("stage:" + stage, key -> Timer.builder("charta.stage")
+                .tag("stage", stage)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(registry))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordBytesIn(String operation, long bytes) {
+        bytes(operation, "in").record(bytes);
+    }
+
+    public void recordBytesOut(String operation, long bytes) {
+        bytes(operation, "out").record(bytes);
+    }
+
+    private DistributionSummary bytes(String operation, String direction) {
+        return summaries.computeIfAbsent(operation + ":" + direction, key -> DistributionSummary.builder("charta.bytes")
+                .baseUnit("bytes")
+                .tag("operation", operation)
+                .tag("direction", direction)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+}
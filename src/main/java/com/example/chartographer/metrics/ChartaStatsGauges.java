@@ -0,0 +1,86 @@
+package com.example.chartographer.metrics;
+
+import com.example.chartographer.image.ChartaHandles;
+import com.example.chartographer.image.DirectBufferPool;
+import com.example.chartographer.image.IngestPipeline;
+import com.example.chartographer.web.cache.FragmentCache;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the counters behind the /stats endpoints as meters.
+ * Not a MeterBinder bean: the registry would then depend on the pipeline components, which record into it.
+ */
+@Component
+public class ChartaStatsGauges {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private IngestPipeline ingestPipeline;
+
+    @Autowired
+    private DirectBufferPool bufferPool;
+
+    @Autowired
+    private ChartaHandles handles;
+
+    @PostConstruct
+    private void register() {
+        FunctionCounter.builder("charta.cache.hits", fragmentCache, cache -> cache.getStats().getHits())
+                .register(registry);
+        FunctionCounter.builder("charta.cache.misses", fragmentCache, cache -> cache.getStats().getMisses())
+                .register(registry);
+        FunctionCounter.builder("charta.cache.evictions", fragmentCache, cache -> cache.getStats().getEvictions())
+                .register(registry);
+        Gauge.builder("charta.cache.entries", fragmentCache, cache -> cache.getStats().getEntries())
+                .register(registry);
+        Gauge.builder("charta.cache.size", fragmentCache, cache -> cache.getStats().getBytes())
+                .baseUnit("bytes")
+                .register(registry);
+
+        FunctionCounter.builder("charta.ingest.buffers.written", ingestPipeline, IngestPipeline::getBuffersWritten)
+                .register(registry);
+        FunctionCounter.builder("charta.ingest.backpressure.waits", ingestPipeline, IngestPipeline::getBackpressureWaits)
+                .register(registry);
+        FunctionCounter.builder("charta.ingest.backpressure.time", ingestPipeline,
+                        pipeline -> pipeline.getBackpressureNanos() / (double) TimeUnit.SECONDS.toNanos(1))
+                .baseUnit("seconds")
+                .register(registry);
+
+        FunctionCounter.builder("charta.buffers.leases", bufferPool, DirectBufferPool::getLeases)
+                .register(registry);
+        FunctionCounter.builder("charta.buffers.allocations", bufferPool, DirectBufferPool::getAllocations)
+                .register(registry);
+        FunctionCounter.builder("charta.buffers.discards", bufferPool, DirectBufferPool::getDiscards)
+                .register(registry);
+        Gauge.builder("charta.buffers.allocated", bufferPool, DirectBufferPool::getAllocatedBytes)
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("charta.buffers.outstanding", bufferPool, DirectBufferPool::getOutstanding)
+                .register(registry);
+        Gauge.builder("charta.buffers.idle", bufferPool, DirectBufferPool::getIdle)
+                .register(registry);
+
+        Gauge.builder("charta.handles.open", handles, ChartaHandles::getOpen)
+                .register(registry);
+        Gauge.builder("charta.handles.hit.ratio", handles, ChartaHandles::getHitRatio)
+                .register(registry);
+        FunctionCounter.builder("charta.handles.hits", handles, ChartaHandles::getHits)
+                .register(registry);
+        FunctionCounter.builder("charta.handles.misses", handles, ChartaHandles::getMisses)
+                .register(registry);
+        FunctionCounter.builder("charta.handles.evictions", handles, ChartaHandles::getEvictions)
+                .register(registry);
+    }
+}
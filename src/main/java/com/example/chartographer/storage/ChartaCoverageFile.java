@@ -0,0 +1,83 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.image.Charta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Coverage index of a charta, stored next to its metadata file so a loaded charta doesn't rebuild it:
+ * a header with the charta id and the number of ints, the little-endian ints of {@link Charta#packCoverage()}
+ * and a CRC32 of them. The file is written whole with every metadata write. It only saves work, so it isn't synced;
+ * a missing, torn or stale file is ignored and the index rebuilt from the pieces.
+ */
+final class ChartaCoverageFile {
+    private static final int MAGIC = 0x44524743; // "CGRD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private ChartaCoverageFile() {
+    }
+
+    /**
+     * Writes ints packed by {@link Charta#packCoverage()}, replacing an existing file atomically.
+     */
+    static void write(Path path, int id, int[] coverage) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + (coverage.length + 1) * Integer.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC).putInt(VERSION).putInt(id).putInt(coverage.length);
+        data.asIntBuffer().put(coverage);
+        data.position(data.position() + coverage.length * Integer.BYTES);
+        data.putInt(checksum(data, coverage.length));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            data.flip();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the packed coverage index of the charta, or null if the file is missing or damaged
+     */
+    static int[] read(Path path, int id) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION
+                || data.getInt() != id) {
+            return null;
+        }
+        int length = data.getInt();
+        if (length < 0 || length > data.remaining() / Integer.BYTES - 1) {
+            return null;
+        }
+        int[] coverage = new int[length];
+        data.asIntBuffer().get(coverage);
+        data.position(data.position() + length * Integer.BYTES);
+        if (data.remaining() != Integer.BYTES || data.getInt() != checksum(data, length)) {
+            return null;
+        }
+        return coverage;
+    }
+
+    /**
+     * CRC32 of the {@code length} ints right after the header.
+     */
+    private static int checksum(ByteBuffer data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), data.arrayOffset() + HEADER_SIZE, length * Integer.BYTES);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,692 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.config.ChartaIdAllocator;
+import com.example.chartographer.config.StartupRunner;
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ChartaStorage;
+import com.example.chartographer.image.ImagePiece;
+import com.example.chartographer.image.ImageUtilsService;
+import com.example.chartographer.image.MipmapPyramid;
+import com.example.chartographer.metrics.ChartaMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of charta operations, kept in {@code journal-{n}.wal} segments of the working directory.
+ * An operation is acknowledged only once its record is on the disk. Records appended while the previous batch
+ * is being synced are written and synced together by a committer thread, so concurrent requests share one fsync.
+ * A fragment record is synced only after the pixels of its charta, which makes an acknowledged fragment durable.
+ * <p>
+ * Writing a fragment over the charta is bracketed by a BEGIN record, durable before the first row is written,
+ * and the COMMIT or ABORT record ending it. Unless the target areas hold no piece, their pixels are saved
+ * to a {@code fragment-{n}.undo} file first. Pieces are added to the charta only once the COMMIT is durable,
+ * and at startup every write without its COMMIT or ABORT is rolled back, so a crash never leaves
+ * half-written rows over a saved piece.
+ * <p>
+ * At every checkpoint a new segment is started, the metadata files are written through and the old segment
+ * is deleted. At startup the remaining segments are replayed on top of the metadata files; replaying a record
+ * applied before is harmless.
+ */
+@Service
+public class ChartaJournal {
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_EXTENSION = ".wal";
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int MAX_PAYLOAD_SIZE = 1 + 7 * Integer.BYTES;
+    private static final String UNDO_PREFIX = "fragment-";
+    private static final String UNDO_EXTENSION = ".undo";
+    private static final int PIXEL_SIZE = 3;
+    private static final byte CHECKPOINT = 0;
+    private static final byte CREATE = 1;
+    private static final byte FRAGMENT = 2;
+    private static final byte DELETE = 3;
+    private static final byte BEGIN = 4;
+    private static final byte COMMIT = 5;
+    private static final byte ABORT = 6;
+
+    private final Object lock = new Object();
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private final List<Runnable> pendingActions = new ArrayList<>();
+    private final Set<Charta> pendingForce = new HashSet<>();
+    private final Set<Charta> sinceCheckpoint = new HashSet<>();
+    private final Set<Integer> unappliedDeletes = new HashSet<>();
+    // BEGIN records of the writes not ended by a durable COMMIT or ABORT yet, by write number
+    private final Map<Integer, ByteBuffer> openWrites = new HashMap<>();
+    // writes a replayed BEGIN record started, until their COMMIT or ABORT is replayed
+    private final TreeMap<Integer, ReplayedWrite> replayedWrites = new TreeMap<>();
+    private int lastWrite;
+    // pieces of every charta a replayed fragment record refers to, see pieceKey
+    private final Map<Integer, Set<Long>> replayedPieces = new HashMap<>();
+    private long appended;
+    private long durable;
+    private IOException failure;
+    private boolean running;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long lastCheckpoint;
+    private boolean checkpointNeeded;
+    private ExecutorService committer;
+
+    @Autowired
+    private ChartaRepository chartaRepository;
+
+    @Autowired
+    private ChartaStorage storage;
+
+    @Autowired
+    private ChartaIdAllocator idAllocator;
+
+    @Autowired
+    private MipmapPyramid pyramid;
+
+    @Autowired
+    private ImageUtilsService imageUtils;
+
+    @Autowired
+    private ChartaMetrics metrics;
+
+    @Value("${chartographer.journal.checkpoint-interval-ms:60000}")
+    private long checkpointIntervalMs;
+
+    /**
+     * Replays the journal on top of the loaded metadata, checkpoints and starts the committer.
+     */
+    public void recover() throws IOException {
+        TreeMap<Long, Path> segments = listSegments();
+        for (Path path : segments.values()) {
+            replay(path);
+        }
+        rollBackReplayedWrites();
+        replayedPieces.clear();
+        chartaRepository.flush();
+        segmentNumber = segments.isEmpty() ? 0 : segments.lastKey();
+        startSegment();
+        for (Path path : segments.values()) {
+            Files.delete(path);
+        }
+        // every write is ended now, so no undo file is needed anymore
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(StartupRunner.getPathToWorkingDirectory(),
+                UNDO_PREFIX + "*" + UNDO_EXTENSION)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        syncWorkingDirectory();
+
+        committer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "charta-journal-committer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (lock) {
+            running = true;
+        }
+        committer.execute(this::commitLoop);
+    }
+
+    /**
+     * Logs a charta whose files are already created and written through, and registers it once the record
+     * is durable. No request finds a charta that isn't logged, and the next checkpoint writes its metadata through.
+     */
+    public void logCreate(Charta c) throws IOException {
+        // the record must not outlive the directory entries of the files it refers to
+        syncWorkingDirectory();
+        awaitDurable(append(null, () -> chartaRepository.save(c), record(CREATE, c.getId(), c.getWidth(), c.getHeight())));
+    }
+
+    /**
+     * Starts writing fragments over the given areas of the charta: saves their pixels unless a single area
+     * holds no piece, then logs the write and waits until the record is durable. The caller holds the write lock
+     * of the rows until the write is ended by {@link #commit} or {@link #abort}, and writes no row before.
+     */
+    public FragmentWrite begin(Charta c, List<ImagePiece> areas) throws IOException {
+        int number;
+        synchronized (lock) {
+            number = ++lastWrite;
+        }
+        ImagePiece area = areas.get(0);
+        Path undo = null;
+        if (areas.size() > 1 || c.hasFragmentInArea(area.getX(), area.getY(), area.getWidth(), area.getHeight())) {
+            undo = undoPath(number);
+            Files.deleteIfExists(undo);
+            FragmentUndoFile.write(undo, c, areas, storage);
+            // the record must not outlive the directory entry of the undo file
+            syncWorkingDirectory();
+        }
+        ByteBuffer record = record(BEGIN, c.getId(), number, undo != null ? 1 : 0,
+                area.getX(), area.getY(), area.getWidth(), area.getHeight());
+        long position;
+        synchronized (lock) {
+            position = append(null, null, record);
+            openWrites.put(number, record);
+        }
+        // once the journal failed the write stays open, the startup after it rolls the write back
+        awaitDurable(position);
+        return new FragmentWrite(c, number, areas, undo);
+    }
+
+    /**
+     * Logs the fragments whose pixels the write stored, ends it and waits until it is durable.
+     * The pieces are added to the charta and saved once the records are on the disk.
+     */
+    public void commit(FragmentWrite write, List<ImagePiece> pieces) throws IOException {
+        Charta c = write.charta;
+        List<ByteBuffer> records = new ArrayList<>();
+        for (ImagePiece piece : pieces) {
+            records.add(record(FRAGMENT, c.getId(), piece.getX(), piece.getY(), piece.getWidth(), piece.getHeight(),
+                    write.number));
+        }
+        records.add(record(COMMIT, c.getId(), write.number));
+        awaitDurable(append(c, () -> {
+            for (ImagePiece piece : pieces) {
+                c.addPiece(piece);
+            }
+            chartaRepository.save(c);
+            writeEnded(write);
+        }, records.toArray(new ByteBuffer[0])));
+    }
+
+    /**
+     * Writes back the pixels the areas held when the write began and ends it. The caller still holds the rows,
+     * so a later write of them is logged after the ABORT record, and doesn't need to wait for it.
+     * A write that can't be rolled back stops the journal, the startup after it rolls the write back again.
+     */
+    public void abort(FragmentWrite write) throws IOException {
+        Charta c = write.charta;
+        try {
+            rollBack(c, write.areas, write.undo);
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                lock.notifyAll();
+            }
+            throw e;
+        }
+        append(c, () -> writeEnded(write), record(ABORT, c.getId(), write.number));
+    }
+
+    /**
+     * Logs the removal of a charta whose files are still in place. Until {@link #deleteApplied} is called
+     * the record is carried over into every new segment, so a checkpoint can't drop it while the charta is stored.
+     */
+    public void logDelete(int id) throws IOException {
+        long position;
+        synchronized (lock) {
+            position = append(null, null, record(DELETE, id));
+            unappliedDeletes.add(id);
+        }
+        try {
+            awaitDurable(position);
+        } catch (IOException e) {
+            deleteApplied(id);
+            throw e;
+        }
+    }
+
+    /**
+     * Marks the charta of a logged delete as removed from the repository and the disk.
+     */
+    public void deleteApplied(int id) {
+        synchronized (lock) {
+            unappliedDeletes.remove(id);
+        }
+    }
+
+    @PreDestroy
+    private void onShutdown() throws IOException {
+        if (committer == null) {
+            return;
+        }
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        committer.shutdown();
+        try {
+            committer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+
+    /**
+     * Queues records for the committer. {@code onDurable} runs on the committer once they are synced,
+     * before anyone waiting for them returns and before the next checkpoint.
+     */
+    private long append(Charta forced, Runnable onDurable, ByteBuffer... records) throws IOException {
+        synchronized (lock) {
+            if (!running || failure != null) {
+                throw new IOException("Journal is unavailable", failure);
+            }
+            pending.addAll(List.of(records));
+            if (forced != null) {
+                pendingForce.add(forced);
+            }
+            if (onDurable != null) {
+                pendingActions.add(onDurable);
+            }
+            lock.notifyAll();
+            appended += records.length;
+            return appended;
+        }
+    }
+
+    /**
+     * Forgets an ended write, so it isn't carried into new segments, and removes its undo file.
+     */
+    private void writeEnded(FragmentWrite write) {
+        synchronized (lock) {
+            openWrites.remove(write.number);
+        }
+        if (write.undo != null) {
+            try {
+                Files.deleteIfExists(write.undo);
+            } catch (IOException e) {
+                // removed at the next startup
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes back the pixels saved in the undo file, or blacks out the areas if they held no piece,
+     * and recomputes their previews.
+     */
+    private void rollBack(Charta c, List<ImagePiece> areas, Path undo) throws IOException {
+        if (undo != null) {
+            areas = FragmentUndoFile.restore(undo, c, storage);
+        } else {
+            for (ImagePiece area : areas) {
+                ByteBuffer black = ByteBuffer.allocate(area.getWidth() * PIXEL_SIZE);
+                for (int y = area.getY(); y < area.getY() + area.getHeight(); y++) {
+                    storage.writeRow(c, y, area.getX(), black.clear());
+                }
+            }
+        }
+        for (ImagePiece area : areas) {
+            pyramid.update(c, area.getX(), area.getY(), area.getWidth(), area.getHeight());
+        }
+    }
+
+    private void awaitDurable(long position) throws IOException {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            while (durable < position && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durable < position) {
+                throw new IOException("Journal commit failed", failure);
+            }
+        }
+        metrics.recordStage(ChartaMetrics.STAGE_JOURNAL_COMMIT, start);
+    }
+
+    /**
+     * Writes and syncs the pending records in batches and checkpoints once the interval has passed.
+     */
+    private void commitLoop() {
+        while (true) {
+            List<ByteBuffer> batch;
+            List<Charta> forced;
+            List<Runnable> actions;
+            long position;
+            synchronized (lock) {
+                long checkpointDue = lastCheckpoint + TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMs);
+                while (pending.isEmpty() && running && (!checkpointNeeded || System.nanoTime() - checkpointDue < 0)) {
+                    try {
+                        lock.wait(checkpointNeeded ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(checkpointDue - System.nanoTime())) : 0);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty() && !running) {
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                forced = new ArrayList<>(pendingForce);
+                actions = new ArrayList<>(pendingActions);
+                position = appended;
+                pending.clear();
+                pendingForce.clear();
+                pendingActions.clear();
+                sinceCheckpoint.addAll(forced);
+                checkpointNeeded |= !batch.isEmpty();
+            }
+            try {
+                if (!batch.isEmpty()) {
+                    // pixels first: a durable fragment record must never point to pixels still in memory
+                    for (Charta c : forced) {
+                        storage.force(c);
+                    }
+                    writeFully(segment, batch.toArray(new ByteBuffer[0]));
+                    segment.force(false);
+                }
+                for (Runnable action : actions) {
+                    action.run();
+                }
+                synchronized (lock) {
+                    durable = position;
+                    lock.notifyAll();
+                }
+                if (checkpointNeeded && System.nanoTime() - lastCheckpoint >= TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMs)) {
+                    checkpoint();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment and writes through everything the previous one recorded, then deletes it.
+     * Metadata is marked changed before its record is appended, so the flush covers the previous segment.
+     */
+    private void checkpoint() throws IOException {
+        List<Charta> touched;
+        synchronized (lock) {
+            touched = new ArrayList<>(sinceCheckpoint);
+            sinceCheckpoint.clear();
+            checkpointNeeded = false;
+        }
+        Path previous = segmentPath(segmentNumber);
+        segment.close();
+        startSegment();
+        for (Charta c : touched) {
+            // the pyramid syncs only levels still open, so a charta removed meanwhile is skipped, not recreated
+            if (chartaRepository.findById(c.getId()).orElse(null) == c) {
+                pyramid.force(c);
+            }
+        }
+        chartaRepository.flush();
+        Files.delete(previous);
+        syncWorkingDirectory();
+    }
+
+    /**
+     * Opens the next segment, starting with the id counter so ids are never reused once older segments are gone,
+     * followed by the deletes logged but not yet applied and the BEGIN records of the open writes.
+     */
+    private void startSegment() throws IOException {
+        List<ByteBuffer> records = new ArrayList<>();
+        records.add(record(CHECKPOINT, Math.toIntExact(idAllocator.getLastId())));
+        synchronized (lock) {
+            for (int id : unappliedDeletes) {
+                records.add(record(DELETE, id));
+            }
+            for (ByteBuffer begin : openWrites.values()) {
+                records.add(begin.duplicate());
+            }
+        }
+        segment = FileChannel.open(segmentPath(++segmentNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writeFully(segment, records.toArray(new ByteBuffer[0]));
+        segment.force(false);
+        syncWorkingDirectory();
+        lastCheckpoint = System.nanoTime();
+    }
+
+    private void replay(Path path) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 1 || length > MAX_PAYLOAD_SIZE || length > data.remaining()) {
+                break; // torn tail of a record that was never acknowledged
+            }
+            ByteBuffer payload = data.slice();
+            payload.limit(length);
+            data.position(data.position() + length);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload);
+        }
+    }
+
+    private void apply(ByteBuffer record) throws IOException {
+        byte type = record.get();
+        int id = record.getInt();
+        switch (type) {
+            case CHECKPOINT:
+                idAllocator.advanceTo(id);
+                break;
+            case CREATE:
+                idAllocator.advanceTo(id);
+                Charta created = chartaRepository.findById(id).orElse(null);
+                if (created == null) {
+                    created = new Charta(id, record.getInt(), record.getInt());
+                    chartaRepository.save(created);
+                }
+                // a later DELETE record removes the files again
+                imageUtils.restoreChartaImage(created);
+                break;
+            case FRAGMENT:
+                int x = record.getInt();
+                int y = record.getInt();
+                ImagePiece piece = new ImagePiece(record.getInt(), record.getInt(), x, y);
+                ReplayedWrite write = record.hasRemaining() ? replayedWrites.get(record.getInt()) : null;
+                if (write != null) {
+                    write.pieces.add(piece);
+                } else {
+                    // logged before fragments were written in BEGIN and COMMIT records
+                    applyFragment(id, piece);
+                }
+                break;
+            case DELETE:
+                replayedPieces.remove(id);
+                replayedWrites.values().removeIf(open -> open.id == id);
+                chartaRepository.delete(id);
+                imageUtils.deleteCharta(id);
+                break;
+            case BEGIN:
+                int number = record.getInt();
+                boolean saved = record.getInt() != 0;
+                int areaX = record.getInt();
+                int areaY = record.getInt();
+                ImagePiece area = new ImagePiece(record.getInt(), record.getInt(), areaX, areaY);
+                // a BEGIN carried into a newer segment is seen again
+                replayedWrites.putIfAbsent(number, new ReplayedWrite(id, area, saved ? undoPath(number) : null));
+                break;
+            case COMMIT:
+                ReplayedWrite committed = replayedWrites.remove(record.getInt());
+                if (committed != null) {
+                    for (ImagePiece committedPiece : committed.pieces) {
+                        applyFragment(id, committedPiece);
+                    }
+                }
+                break;
+            case ABORT:
+                replayedWrites.remove(record.getInt());
+                break;
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private void applyFragment(int id, ImagePiece piece) throws IOException {
+        Charta c = chartaRepository.findById(id).orElse(null);
+        long key = pieceKey(piece.getX(), piece.getY(), piece.getWidth(), piece.getHeight());
+        if (c != null && replayedPieces.computeIfAbsent(id, charta -> pieceKeys(c)).add(key)) {
+            c.addPiece(piece);
+            chartaRepository.save(c);
+            // the previews of the area may not have reached the disk
+            pyramid.update(c, piece.getX(), piece.getY(), piece.getWidth(), piece.getHeight());
+        }
+    }
+
+    /**
+     * Rolls back the writes the crash interrupted, the latest first, and syncs the restored pixels
+     * before the segments recording the writes are deleted.
+     */
+    private void rollBackReplayedWrites() throws IOException {
+        Set<Charta> restored = new HashSet<>();
+        for (ReplayedWrite write : replayedWrites.descendingMap().values()) {
+            Charta c = chartaRepository.findById(write.id).orElse(null);
+            if (c == null) {
+                continue;
+            }
+            if (write.undo != null && !Files.exists(write.undo)) {
+                System.err.println("Undo file " + write.undo + " is missing, the rows of charta " + write.id
+                        + " are left as they are");
+                continue;
+            }
+            rollBack(c, List.of(write.area), write.undo);
+            restored.add(c);
+        }
+        replayedWrites.clear();
+        for (Charta c : restored) {
+            storage.force(c);
+            pyramid.force(c);
+        }
+    }
+
+    /**
+     * Keys of the pieces a charta was loaded with, so a replayed record is matched without scanning them.
+     */
+    private static Set<Long> pieceKeys(Charta c) {
+        int[] pieces = c.copyPieces(0);
+        Set<Long> keys = new HashSet<>(pieces.length / Charta.PIECE_INTS * 2);
+        for (int i = 0; i < pieces.length; i += Charta.PIECE_INTS) {
+            keys.add(pieceKey(pieces[i], pieces[i + 1], pieces[i + 2], pieces[i + 3]));
+        }
+        return keys;
+    }
+
+    /**
+     * Packs a piece into a long: x and width take 15 bits, y and height 16 bits, enough for the largest charta.
+     */
+    private static long pieceKey(int x, int y, int width, int height) {
+        return x | (long) y << 15 | (long) width << 31 | (long) height << 46;
+    }
+
+    /**
+     * Encodes a record: payload length, CRC32 of the payload, then the payload made of the type and int fields.
+     */
+    private static ByteBuffer record(byte type, int... fields) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + fields.length * Integer.BYTES).put(type);
+        for (int field : fields) {
+            payload.putInt(field);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.capacity())
+                .putInt(payload.capacity())
+                .putInt((int) crc.getValue())
+                .put(payload.array())
+                .flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    private static TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(StartupRunner.getPathToWorkingDirectory(),
+                SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_EXTENSION.length())), file);
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static Path segmentPath(long number) {
+        return StartupRunner.workDirResolve(SEGMENT_PREFIX + number + SEGMENT_EXTENSION);
+    }
+
+    private static Path undoPath(int number) {
+        return StartupRunner.workDirResolve(UNDO_PREFIX + number + UNDO_EXTENSION);
+    }
+
+    /**
+     * Makes created and deleted files durable. Not every platform can sync a directory, where it can't
+     * the file system is left to persist the directory on its own.
+     */
+    private static void syncWorkingDirectory() {
+        try (FileChannel directory = FileChannel.open(StartupRunner.getPathToWorkingDirectory(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // e.g. Windows can't open a directory
+        }
+    }
+
+    /**
+     * A fragment write begun by {@link #begin}, ended by {@link #commit} or {@link #abort}.
+     */
+    public static final class FragmentWrite {
+        private final Charta charta;
+        private final int number;
+        private final List<ImagePiece> areas;
+        private final Path undo;
+
+        private FragmentWrite(Charta charta, int number, List<ImagePiece> areas, Path undo) {
+            this.charta = charta;
+            this.number = number;
+            this.areas = areas;
+            this.undo = undo;
+        }
+    }
+
+    private static final class ReplayedWrite {
+        private final int id;
+        // the area of a write without undo file, which held no piece
+        private final ImagePiece area;
+        private final Path undo;
+        private final List<ImagePiece> pieces = new ArrayList<>();
+
+        private ReplayedWrite(int id, ImagePiece area, Path undo) {
+            this.id = id;
+            this.area = area;
+            this.undo = undo;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.image.Charta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary charta metadata: a header with the id and size of the charta followed by its pieces,
+ * each made of little-endian x, y, width and height ints. New pieces are appended to the end,
+ * so the file is never rewritten; a piece torn by a crash is dropped when the file is read.
+ * The coverage index of the pieces is stored separately, see {@link ChartaCoverageFile}.
+ */
+final class ChartaMetadataFile {
+    private static final int MAGIC = 0x41544D43; // "CMTA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    private static final int PIECE_SIZE = Charta.PIECE_INTS * Integer.BYTES;
+
+    private ChartaMetadataFile() {
+    }
+
+    /**
+     * Writes the whole charta to a new file, replacing an existing one atomically.
+     */
+    static void write(Path path, Charta c) throws IOException {
+        int[] pieces = c.copyPieces(0);
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + pieces.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC).putInt(VERSION).putInt(c.getId()).putInt(c.getWidth()).putInt(c.getHeight());
+        data.asIntBuffer().put(pieces);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, data.clear(), 0);
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Appends pieces packed as in {@link Charta#PIECE_INTS} after the {@code stored} pieces already in the file.
+     */
+    static void append(Path path, int stored, int[] pieces) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(pieces.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        data.asIntBuffer().put(pieces);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            // overwrites a torn piece left by a crash instead of appending after it
+            writeFully(channel, data, HEADER_SIZE + (long) stored * PIECE_SIZE);
+            channel.force(false);
+        }
+    }
+
+    static Charta read(Path path) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC) {
+            throw new IOException("Not a charta metadata file");
+        }
+        int version = data.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported metadata version " + version);
+        }
+        int id = data.getInt();
+        int width = data.getInt();
+        int height = data.getInt();
+        int pieceCount = data.remaining() / PIECE_SIZE;
+        IntBuffer packed = data.asIntBuffer();
+        int[] pieces = new int[pieceCount * Charta.PIECE_INTS];
+        packed.get(pieces);
+        return new Charta(id, width, height, pieces, pieceCount);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
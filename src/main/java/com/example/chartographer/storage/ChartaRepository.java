@@ -0,0 +1,240 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.config.StartupRunner;
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ImagePiece;
+import com.example.chartographer.metrics.ChartaMetrics;
+import com.google.gson.Gson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory registry of charta metadata.
+ * Chartas are loaded once at startup and served from memory. Changes are recorded in the {@link ChartaJournal}
+ * first and written to the metadata files at its checkpoints, so many updates of a charta cost one write.
+ * Metadata is kept in binary {@link ChartaMetadataFile}s, where a flush only appends the new pieces,
+ * next to a {@link ChartaCoverageFile} with the coverage index of the pieces; JSON files of earlier versions
+ * are converted at startup.
+ */
+@Service
+public class ChartaRepository {
+
+    private static final String METADATA_EXTENSION = ".meta";
+    private static final String LEGACY_METADATA_EXTENSION = ".json";
+    private static final String COVERAGE_EXTENSION = ".grid";
+
+    private final Map<Integer, Charta> chartas = new ConcurrentHashMap<>();
+    // number of pieces in the metadata file of every stored charta
+    private final Map<Integer, Integer> storedPieces = new ConcurrentHashMap<>();
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    private final Object flushLock = new Object();
+
+    @Autowired
+    private Gson gson;
+
+    @Autowired
+    private ChartaMetrics metrics;
+
+    /**
+     * Loads every charta stored in the working directory, converting the JSON files of earlier versions.
+     */
+    public void load() {
+        long start = System.nanoTime();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(StartupRunner.getPathToWorkingDirectory(),
+                "*" + METADATA_EXTENSION)) {
+            for (Path file : files) {
+                loadCharta(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(StartupRunner.getPathToWorkingDirectory(),
+                "*" + LEGACY_METADATA_EXTENSION)) {
+            for (Path file : files) {
+                migrateCharta(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.recordStage(ChartaMetrics.STAGE_METADATA_LOAD, start);
+    }
+
+    public Optional<Charta> findById(int id) {
+        return Optional.ofNullable(chartas.get(id));
+    }
+
+    /**
+     * Registers a new charta or marks a known one as changed. The metadata file is written at the next flush.
+     */
+    public void save(Charta c) {
+        chartas.put(c.getId(), c);
+        dirty.add(c.getId());
+    }
+
+    public boolean delete(int id) {
+        if (chartas.remove(id) == null) {
+            return false;
+        }
+        synchronized (flushLock) {
+            dirty.remove(id);
+            storedPieces.remove(id);
+            try {
+                Files.deleteIfExists(metadataPath(id));
+                Files.deleteIfExists(coveragePath(id));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes every charta changed since the previous flush through to the disk.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<Integer> ids = new ArrayList<>(dirty);
+            for (Integer id : ids) {
+                dirty.remove(id);
+                Charta c = chartas.get(id);
+                if (c == null) {
+                    continue;
+                }
+                try {
+                    writeCharta(c);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    dirty.add(id);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    private void onShutdown() {
+        flush();
+    }
+
+    private void loadCharta(Path file) {
+        if (parseId(file, METADATA_EXTENSION) == null) {
+            return;
+        }
+        try {
+            Charta c = ChartaMetadataFile.read(file);
+            loadCoverage(c);
+            chartas.put(c.getId(), c);
+            storedPieces.put(c.getId(), c.getPieceCount());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Can't load charta metadata from " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Restores the stored coverage index of a loaded charta. Without a usable one the charta rebuilds it on first use.
+     */
+    private void loadCoverage(Charta c) {
+        try {
+            int[] coverage = ChartaCoverageFile.read(coveragePath(c.getId()), c.getId());
+            if (coverage != null) {
+                c.restoreCoverage(coverage);
+            }
+        } catch (IOException e) {
+            System.err.println("Can't load the coverage index of charta " + c.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts a JSON metadata file of an earlier version, unless the charta was converted before.
+     */
+    private void migrateCharta(Path file) {
+        Integer id = parseId(file, LEGACY_METADATA_EXTENSION);
+        if (id == null) {
+            return; // not a charta, e.g. options.json
+        }
+        try {
+            if (!chartas.containsKey(id)) {
+                LegacyCharta legacy;
+                try (Reader reader = Files.newBufferedReader(file)) {
+                    legacy = gson.fromJson(reader, LegacyCharta.class);
+                }
+                if (legacy == null) {
+                    return;
+                }
+                Charta c = new Charta(legacy.id, legacy.width, legacy.height);
+                if (legacy.pieces != null) {
+                    legacy.pieces.forEach(c::addPiece);
+                }
+                writeCharta(c);
+                chartas.put(c.getId(), c);
+            }
+            Files.delete(file);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Can't convert charta metadata from " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends the pieces added since the previous write, or writes the whole file for a new charta,
+     * then replaces the stored coverage index.
+     */
+    private void writeCharta(Charta c) throws IOException {
+        long start = System.nanoTime();
+        // packed first, so the index never covers pieces missing from the metadata file
+        int[] coverage = c.packCoverage();
+        Integer stored = storedPieces.get(c.getId());
+        int count;
+        if (stored == null) {
+            count = c.getPieceCount();
+            ChartaMetadataFile.write(metadataPath(c.getId()), c);
+        } else {
+            int[] pieces = c.copyPieces(stored);
+            count = stored + pieces.length / Charta.PIECE_INTS;
+            if (pieces.length > 0) {
+                ChartaMetadataFile.append(metadataPath(c.getId()), stored, pieces);
+            }
+        }
+        storedPieces.put(c.getId(), count);
+        ChartaCoverageFile.write(coveragePath(c.getId()), c.getId(), coverage);
+        metrics.recordStage(ChartaMetrics.STAGE_METADATA_SAVE, start);
+    }
+
+    private static Integer parseId(Path file, String extension) {
+        String name = file.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - extension.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Path metadataPath(int id) {
+        return StartupRunner.workDirResolve(id + METADATA_EXTENSION);
+    }
+
+    private Path coveragePath(int id) {
+        return StartupRunner.workDirResolve(id + COVERAGE_EXTENSION);
+    }
+
+    /**
+     * Charta metadata as stored in JSON by earlier versions.
+     */
+    private static final class LegacyCharta {
+        private int id;
+        private int width;
+        private int height;
+        private List<ImagePiece> pieces;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.chartographer.storage;
+
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ChartaStorage;
+import com.example.chartographer.image.ImagePiece;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Before-image of the areas a fragment write is about to overwrite: a header with the charta id and the number
+ * of areas, the little-endian x, y, width, height of every area, then the top-down BGR rows of every area.
+ * The file is synced before the write is logged, so a logged write always finds it complete.
+ */
+final class FragmentUndoFile {
+    private static final int MAGIC = 0x444E5546; // "FUND"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int AREA_SIZE = 4 * Integer.BYTES;
+    private static final int PIXEL_SIZE = 3;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private FragmentUndoFile() {
+    }
+
+    /**
+     * Saves the current pixels of the areas and syncs the file. The caller holds the write lock of their rows.
+     */
+    static void write(Path path, Charta c, List<ImagePiece> areas, ChartaStorage storage) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + areas.size() * AREA_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC).putInt(VERSION).putInt(c.getId()).putInt(areas.size());
+        for (ImagePiece area : areas) {
+            header.putInt(area.getX()).putInt(area.getY()).putInt(area.getWidth()).putInt(area.getHeight());
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFully(channel, header.flip());
+            for (ImagePiece area : areas) {
+                int rowSize = area.getWidth() * PIXEL_SIZE;
+                ByteBuffer buffer = ByteBuffer.allocate(Math.max(rowSize, BUFFER_SIZE / rowSize * rowSize));
+                for (int y = area.getY(); y < area.getY() + area.getHeight(); y++) {
+                    buffer.limit(buffer.position() + rowSize);
+                    storage.readRow(c, y, area.getX(), buffer);
+                    if (buffer.position() == buffer.capacity()) {
+                        writeFully(channel, buffer.flip());
+                        buffer.clear();
+                    }
+                }
+                writeFully(channel, buffer.flip());
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Writes the saved pixels back into the charta and returns the restored areas.
+     */
+    static List<ImagePiece> restore(Path path, Charta c, ChartaStorage storage) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != c.getId()) {
+                throw new IOException("Damaged undo file " + path);
+            }
+            int count = header.getInt();
+            if (count < 0 || (long) count * AREA_SIZE > channel.size() - HEADER_SIZE) {
+                throw new IOException("Damaged undo file " + path);
+            }
+            ByteBuffer fields = ByteBuffer.allocate(count * AREA_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, fields);
+            fields.flip();
+            List<ImagePiece> areas = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int x = fields.getInt();
+                int y = fields.getInt();
+                areas.add(new ImagePiece(fields.getInt(), fields.getInt(), x, y));
+            }
+            for (ImagePiece area : areas) {
+                int rowSize = area.getWidth() * PIXEL_SIZE;
+                ByteBuffer buffer = ByteBuffer.allocate(Math.max(rowSize, BUFFER_SIZE / rowSize * rowSize));
+                int end = 0;
+                for (int y = area.getY(); y < area.getY() + area.getHeight(); y++) {
+                    if (buffer.position() == end) {
+                        end = (int) Math.min(buffer.capacity(), (long) (area.getY() + area.getHeight() - y) * rowSize);
+                        buffer.clear().limit(end);
+                        readFully(channel, buffer);
+                        buffer.flip();
+                    }
+                    buffer.limit(buffer.position() + rowSize);
+                    storage.writeRow(c, y, area.getX(), buffer);
+                    buffer.limit(end);
+                }
+            }
+            return areas;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) {
+                throw new IOException("Unexpected end of undo file");
+            }
+        }
+    }
+}
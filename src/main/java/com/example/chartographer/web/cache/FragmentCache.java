@@ -0,0 +1,174 @@
+package com.example.chartographer.web.cache;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Byte-bounded LRU cache of encoded fragment responses.
+ * Entries are dropped when a fragment is saved over their area or their charta is deleted;
+ * they are indexed by charta, so that only looks at the entries of the charta.
+ */
+@Component
+public class FragmentCache {
+
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Set<Key>> keysByCharta = new HashMap<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    @Value("${chartographer.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${chartographer.cache.max-entry-bytes:4194304}")
+    private long maxEntryBytes;
+
+    public synchronized byte[] get(Key key) {
+        byte[] value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public boolean isCacheable(long size) {
+        return size <= maxEntryBytes && size <= maxBytes;
+    }
+
+    public synchronized void put(Key key, byte[] value) {
+        if (!isCacheable(value.length)) {
+            return;
+        }
+        byte[] previous = entries.put(key, value);
+        if (previous == null) {
+            keysByCharta.computeIfAbsent(key.id, id -> new HashSet<>()).add(key);
+        }
+        bytes += value.length - (previous == null ? 0 : previous.length);
+        Iterator<Map.Entry<Key, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            Map.Entry<Key, byte[]> entry = eldest.next();
+            bytes -= entry.getValue().length;
+            eldest.remove();
+            unindex(entry.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached fragment of the charta overlapping the given area.
+     */
+    public synchronized void invalidate(int id, int x, int y, int width, int height) {
+        Set<Key> keys = keysByCharta.get(id);
+        if (keys == null) {
+            return;
+        }
+        Iterator<Key> it = keys.iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            if (key.overlaps(x, y, width, height)) {
+                bytes -= entries.remove(key).length;
+                it.remove();
+            }
+        }
+        if (keys.isEmpty()) {
+            keysByCharta.remove(id);
+        }
+    }
+
+    public void invalidate(int id) {
+        invalidate(id, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    private void unindex(Key key) {
+        Set<Key> keys = keysByCharta.get(key.id);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByCharta.remove(key.id);
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    public static final class Key {
+        private final int id;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        public Key(int id, int x, int y, int width, int height) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        private boolean overlaps(int x, int y, int width, int height) {
+            return (long) x + width > this.x && x < (long) this.x + this.width
+                    && (long) y + height > this.y && y < (long) this.y + this.height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return id == key.id && x == key.x && y == key.y && width == key.width && height == key.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, x, y, width, height);
+        }
+    }
+
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+
+        private Stats(long hits, long misses, long evictions, int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -1,32 +1,85 @@
 package com.example.chartographer.web.controllers;
 
-import com.example.chartographer.config.StartupRunner;
+import com.example.chartographer.config.ChartaIdAllocator;
 import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ChartaLockManager;
+import com.example.chartographer.image.FragmentDecoder;
+import com.example.chartographer.image.FragmentRegion;
 import com.example.chartographer.image.ImagePiece;
 import com.example.chartographer.image.ImageUtilsService;
-import com.google.gson.Gson;
+import com.example.chartographer.image.MipmapPyramid;
+import com.example.chartographer.image.ParallelCompressor;
+import com.example.chartographer.image.ParallelDeflaterOutputStream;
+import com.example.chartographer.metrics.ChartaMetrics;
+import com.example.chartographer.metrics.CountingOutputStream;
+import com.example.chartographer.storage.ChartaJournal;
+import com.example.chartographer.storage.ChartaRepository;
+import com.example.chartographer.web.cache.FragmentCache;
+import com.example.chartographer.web.upload.FragmentUploads;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
-import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 @RestController
 @RequestMapping("/chartas")
 public class ChartasController {
+    private static final MediaType BMP = MediaType.parseMediaType("image/bmp");
 
     @Autowired
-    private Gson gson;
+    private ChartaRepository chartaRepository;
+
+    @Autowired
+    private ChartaJournal chartaJournal;
+
+    @Autowired
+    private ChartaIdAllocator idAllocator;
 
     @Autowired
     private ImageUtilsService imageUtils;
 
+    @Autowired
+    private ChartaLockManager lockManager;
+
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private MipmapPyramid pyramid;
+
+    @Autowired
+    private ParallelCompressor compressor;
+
+    @Autowired
+    private ChartaMetrics metrics;
+
+    @Autowired
+    private FragmentUploads fragmentUploads;
+
+    @Value("${chartographer.batch.max-bytes:67108864}")
+    private long maxBatchBytes;
+
+    @Value("${chartographer.regions.buffer-bytes:8388608}")
+    private long regionsBufferBytes;
+
     @PostMapping(value = "/", params = {
             "width",
             "height"
@@ -37,13 +90,17 @@ public class ChartasController {
             return ResponseEntity.badRequest().build();
         }
 
-        Charta c = new Charta(width, height);
-        try (
-                Writer writer = Files.newBufferedWriter(StartupRunner.workDirResolve(c.getId() + ".json"))
-        ) {
-            imageUtils.createEmptyBMPfile(width, height, String.valueOf(c.getId()));
-            gson.toJson(c, writer);
-            writer.flush();
+        Charta c;
+        try {
+            c = new Charta(idAllocator.next(), width, height);
+            imageUtils.createChartaImage(c);
+            try {
+                chartaJournal.logCreate(c);
+            } catch (IOException e) {
+                // never registered, the files are all that is left of it
+                imageUtils.deleteCharta(c.getId());
+                throw e;
+            }
         } catch (IOException e) {
             e.printStackTrace();
             return ResponseEntity.internalServerError().build();
@@ -51,71 +108,408 @@ public class ChartasController {
         return new ResponseEntity<>(c.getId(), HttpStatus.CREATED);
     }
 
+    /**
+     * Saves a fragment sent as the request body. Neither waiting for the rows nor reading the body blocks
+     * a container thread, the response is sent once the fragment is stored.
+     */
     @PostMapping(value = "/{id}")
-    private ResponseEntity<Void> saveFragment(@PathVariable("id") int id,
-                                              @RequestParam int x,
-                                              @RequestParam int y,
-                                              @RequestParam int width,
-                                              @RequestParam int height,
-                                              HttpServletRequest request) {
+    private DeferredResult<ResponseEntity<Void>> saveFragment(@PathVariable("id") int id,
+                                                              @RequestParam int x,
+                                                              @RequestParam int y,
+                                                              @RequestParam int width,
+                                                              @RequestParam int height,
+                                                              HttpServletRequest request) {
 
         if (!verifyWidthHeightCharta(width, height) || !verifyXY(x, y) || !verifyId(id)) {
-            return ResponseEntity.badRequest().build();
+            return completed(ResponseEntity.badRequest().build());
         }
 
-        try (
-                Reader reader = Files.newBufferedReader(StartupRunner.workDirResolve(id + ".json"))
-        ) {
-            Charta c = gson.fromJson(reader, Charta.class);
-            InputStream stream = request.getInputStream();
-            reader.close();
+        Charta c = chartaRepository.findById(id).orElse(null);
+        if (c == null) {
+            return completed(ResponseEntity.notFound().build());
+        }
 
-            if (!imageUtils.appendToImage(c, stream, id, x, y, width, height)) {
-                return ResponseEntity.badRequest().build();
+        FragmentDecoder decoder = imageUtils.openFragment(c, x, y, width, height);
+        if (decoder == null) {
+            return completed(ResponseEntity.badRequest().build());
+        }
+        ImagePiece piece = new ImagePiece(width, height, x, y);
+        return fragmentUploads.receive(request, c, y, height, decoder, new FragmentUploads.Handler() {
+            private ChartaJournal.FragmentWrite write;
+
+            @Override
+            public boolean begin() throws IOException {
+                if (!isStored(c)) {
+                    return false;
+                }
+                write = chartaJournal.begin(c, List.of(piece));
+                return true;
+            }
+
+            @Override
+            public void commit() throws IOException {
+                fragmentCache.invalidate(id, x, y, width, height);
+                chartaJournal.commit(write, List.of(piece));
             }
 
-            Writer writer = Files.newBufferedWriter(StartupRunner.workDirResolve(id + ".json"));
-            c.addPiece(new ImagePiece(width, height, x, y));
-            gson.toJson(c, writer);
-            writer.close();
-        } catch (NoSuchFileException fnf) {
+            @Override
+            public void abort() throws IOException {
+                chartaJournal.abort(write);
+            }
+        });
+    }
+
+    /**
+     * Saves many fragments of one charta at once. The body is a sequence of frames, each made of big-endian
+     * x, y, width, height and image length ints followed by the image. Responds with a status per frame in request order.
+     */
+    @PostMapping(value = "/{id}/fragments")
+    private ResponseEntity<int[]> saveFragments(@PathVariable("id") int id, HttpServletRequest request) {
+        if (!verifyId(id)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        Charta c = chartaRepository.findById(id).orElse(null);
+        if (c == null) {
             return ResponseEntity.notFound().build();
+        }
+
+        List<FragmentPart> parts;
+        try {
+            parts = readFragmentParts(request.getInputStream());
+        } catch (EOFException | MalformedBatchException e) {
+            return ResponseEntity.badRequest().build();
         } catch (IOException e) {
             e.printStackTrace();
             return ResponseEntity.internalServerError().build();
         }
+        if (parts == null) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+        metrics.recordBytesIn("saveBatch", parts.stream().mapToLong(part -> part.bmp.length).sum());
+
+        int[] statuses = new int[parts.size()];
+        List<FragmentPart> accepted = new ArrayList<>();
+        for (FragmentPart part : parts) {
+            if (!verifyWidthHeightCharta(part.width, part.height) || !verifyXY(part.x, part.y)
+                    || part.x > c.getWidth() - part.width || part.y > c.getHeight() - part.height) {
+                statuses[part.index] = HttpStatus.BAD_REQUEST.value();
+            } else {
+                accepted.add(part);
+            }
+        }
+        if (accepted.isEmpty()) {
+            return ResponseEntity.ok(statuses);
+        }
 
-        return new ResponseEntity<>(HttpStatus.OK);
+        // bottom rows come first in the charta storage, so this order keeps the writes sequential
+        accepted.sort(Comparator.comparingInt((FragmentPart part) -> -(part.y + part.height)).thenComparingInt(part -> part.x));
+        int top = accepted.stream().mapToInt(part -> part.y).min().getAsInt();
+        int bottom = accepted.stream().mapToInt(part -> part.y + part.height).max().getAsInt();
+
+        try (ChartaLockManager.RegionLock lock = lockManager.lockWrite(c, top, bottom - top)) {
+            if (!isStored(c)) {
+                return ResponseEntity.notFound().build();
+            }
+            List<ImagePiece> areas = new ArrayList<>();
+            for (FragmentPart part : accepted) {
+                areas.add(new ImagePiece(part.width, part.height, part.x, part.y));
+            }
+            ChartaJournal.FragmentWrite write = chartaJournal.begin(c, areas);
+            List<ImagePiece> saved = new ArrayList<>();
+            try {
+                for (FragmentPart part : accepted) {
+                    if (imageUtils.appendToImage(c, new ByteArrayInputStream(part.bmp), id, part.x, part.y, part.width, part.height)) {
+                        saved.add(new ImagePiece(part.width, part.height, part.x, part.y));
+                        fragmentCache.invalidate(id, part.x, part.y, part.width, part.height);
+                        statuses[part.index] = HttpStatus.OK.value();
+                    } else {
+                        statuses[part.index] = HttpStatus.BAD_REQUEST.value();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                chartaJournal.abort(write);
+                throw e;
+            }
+            if (saved.isEmpty()) {
+                chartaJournal.abort(write);
+            } else {
+                chartaJournal.commit(write, saved);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError().build();
+        }
+
+        return ResponseEntity.ok(statuses);
     }
 
-    @GetMapping(value = "/{id}", produces = "image/bmp")
-    private ResponseEntity<?> getFragment(@PathVariable("id") int id,
+    /**
+     * Returns the area as a BMP, or as a PNG when the Accept header prefers image/png.
+     * A BMP is gzip compressed when the Accept-Encoding header allows it.
+     */
+    @GetMapping(value = "/{id}", produces = {"image/bmp", "image/png"})
+    private ResponseEntity<StreamingResponseBody> getFragment(@PathVariable("id") int id,
                                           @RequestParam int x,
                                           @RequestParam int y,
                                           @RequestParam int width,
-                                          @RequestParam int height) {
+                                          @RequestParam int height,
+                                          @RequestHeader(value = HttpHeaders.ACCEPT, defaultValue = "image/bmp") String accept,
+                                          @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, defaultValue = "") String acceptEncoding,
+                                          HttpServletRequest request) {
 
         if (!verifyWidthHeightPiece(width, height) || !verifyXY(x, y) || !verifyId(id)) {
             return ResponseEntity.badRequest().build();
         }
 
-        try (
-                Reader fileReader = Files.newBufferedReader(StartupRunner.workDirResolve(id + ".json"));
-                ByteArrayOutputStream out = new ByteArrayOutputStream()
-        ) {
-            Charta c = gson.fromJson(fileReader, Charta.class);
-            if (!c.hasFragmentInArea(x, y, width, height)) {
-                return ResponseEntity.badRequest().body("no fragment in given area");
+        Charta c = chartaRepository.findById(id).orElse(null);
+        if (c == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        if (!c.hasFragmentInArea(x, y, width, height)) {
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(out -> out.write("no fragment in given area".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        if (prefersPng(accept)) {
+            ChartaLockManager.RegionLock lock = lockReadStored(c, y, height);
+            if (lock == null) {
+                return ResponseEntity.notFound().build();
             }
-            BufferedImage image = imageUtils.readFragment(c, x, y, width, height);
-            ImageIO.write(image, "bmp", out);
-            return ResponseEntity.ok().body(out.toByteArray());
-        } catch (NoSuchFileException fnf) {
+            return ResponseEntity.ok()
+                    .contentType(MediaType.IMAGE_PNG)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)
+                    .body(counted("get", locked(lock, request,
+                            out -> imageUtils.readFragmentPng(c, x, y, width, height, out))));
+        }
+
+        boolean gzip = acceptsGzip(acceptEncoding);
+        FragmentCache.Key key = new FragmentCache.Key(id, x, y, width, height);
+        byte[] cached = fragmentCache.get(key);
+        ChartaLockManager.RegionLock lock = cached == null ? lockReadStored(c, y, height) : null;
+        if (cached == null && lock == null) {
             return ResponseEntity.notFound().build();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return ResponseEntity.badRequest().build();
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(BMP)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+        long size = ImageUtilsService.getBmpFileSize(width, height);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        } else {
+            response.contentLength(size);
+        }
+        if (cached != null) {
+            return response.body(counted("get", encoded(gzip, out -> out.write(cached))));
+        }
+
+        StreamingResponseBody body = out -> {
+            if (!fragmentCache.isCacheable(size)) {
+                // rows go straight from the charta to the response, the fragment is never held in memory
+                imageUtils.readFragment(c, x, y, width, height, out);
+                return;
+            }
+            ByteArrayOutputStream fragment = new ByteArrayOutputStream((int) size);
+            imageUtils.readFragment(c, x, y, width, height, fragment);
+            // cached under the read lock, so a concurrent save can only invalidate it afterwards
+            fragmentCache.put(key, fragment.toByteArray());
+            fragment.writeTo(out);
+        };
+        return response.body(counted("get", encoded(gzip, locked(lock, request, body))));
+    }
+
+    /**
+     * Returns an area of the charta, the whole charta by default, scaled down {@code scale} times.
+     * The scale has to be a power of two no larger than the deepest preview level of the charta,
+     * and the area has to start inside the charta at a multiple of the scale.
+     */
+    @GetMapping(value = "/{id}/preview", produces = "image/bmp")
+    private ResponseEntity<StreamingResponseBody> getPreview(@PathVariable("id") int id,
+                                                             @RequestParam int scale,
+                                                             @RequestParam(defaultValue = "0") int x,
+                                                             @RequestParam(defaultValue = "0") int y,
+                                                             @RequestParam(required = false) Integer width,
+                                                             @RequestParam(required = false) Integer height,
+                                                             HttpServletRequest request) {
+        if (!verifyId(id) || !verifyXY(x, y) || scale < 1 || Integer.bitCount(scale) != 1) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        Charta c = chartaRepository.findById(id).orElse(null);
+        if (c == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        int level = Integer.numberOfTrailingZeros(scale);
+        int areaWidth = width == null ? c.getWidth() : width;
+        int areaHeight = height == null ? c.getHeight() : height;
+        if (level > pyramid.getLevelCount(c) || !verifyWidthHeightCharta(areaWidth, areaHeight)
+                || x >= c.getWidth() || y >= c.getHeight() || ((x | y) & (scale - 1)) != 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        int previewWidth = (areaWidth + scale - 1) >> level;
+        int previewHeight = (areaHeight + scale - 1) >> level;
+
+        // each preview pixel covers scale x scale charta pixels, the last row may reach past the area
+        ChartaLockManager.RegionLock lock = lockReadStored(c, y, previewHeight << level);
+        if (lock == null) {
+            return ResponseEntity.notFound().build();
+        }
+        StreamingResponseBody body = out -> imageUtils.readPreview(c, level, x >> level, y >> level,
+                previewWidth, previewHeight, out);
+        return ResponseEntity.ok()
+                .contentLength(ImageUtilsService.getBmpFileSize(previewWidth, previewHeight))
+                .body(counted("preview", locked(lock, request, body)));
+    }
+
+    /**
+     * Reads many areas of one charta, each given as {@code region=x,y,width,height}, in a single pass over its rows.
+     * Responds with a multipart/mixed body holding a BMP per area in request order; an area without fragments
+     * gets a text part with status 400 instead.
+     * Areas are read in windows of at most {@code chartographer.regions.buffer-bytes}, each under its own read lock,
+     * and an area larger than that goes straight to the response. Areas of a charta removed before their window
+     * get a text part with status 404.
+     */
+    @GetMapping(value = "/{id}/regions")
+    private ResponseEntity<StreamingResponseBody> getRegions(@PathVariable("id") int id,
+                                                             @RequestParam("region") List<String> params,
+                                                             HttpServletRequest request) {
+        if (!verifyId(id)) {
+            return ResponseEntity.badRequest().build();
+        }
+        List<FragmentRegion> regions = new ArrayList<>(params.size());
+        long total = 0;
+        for (String param : params) {
+            FragmentRegion r = parseRegion(param);
+            if (r == null || !verifyWidthHeightPiece(r.getWidth(), r.getHeight()) || !verifyXY(r.getX(), r.getY())) {
+                return ResponseEntity.badRequest().build();
+            }
+            total += ImageUtilsService.getBmpFileSize(r.getWidth(), r.getHeight());
+            regions.add(r);
+        }
+        if (total > maxBatchBytes) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+
+        Charta c = chartaRepository.findById(id).orElse(null);
+        if (c == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        boolean[] empty = new boolean[regions.size()];
+        for (int i = 0; i < regions.size(); i++) {
+            FragmentRegion r = regions.get(i);
+            empty[i] = !c.hasFragmentInArea(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        }
+        List<Integer> windowEnds = new ArrayList<>();
+        long windowBytes = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            if (empty[i]) {
+                continue;
+            }
+            FragmentRegion r = regions.get(i);
+            long size = ImageUtilsService.getBmpFileSize(r.getWidth(), r.getHeight());
+            if (windowBytes > 0 && windowBytes + size > regionsBufferBytes) {
+                windowEnds.add(i);
+                windowBytes = 0;
+            }
+            windowBytes += size;
+        }
+        windowEnds.add(regions.size());
+
+        // the first window is locked here, so a removed charta is answered with 404 before the response starts
+        ChartaLockManager.RegionLock first = lockReadStored(c, regions, empty, 0, windowEnds.get(0));
+        if (first == null) {
+            return ResponseEntity.notFound().build();
+        }
+        String boundary = UUID.randomUUID().toString();
+        StreamingResponseBody body = out -> {
+            int from = 0;
+            boolean stored = true;
+            for (int to : windowEnds) {
+                ChartaLockManager.RegionLock lock = from == 0 ? first
+                        : stored ? lockReadStored(c, regions, empty, from, to) : null;
+                stored = lock != null;
+                try {
+                    writeRegions(c, regions, empty, from, to, stored, boundary, out);
+                } finally {
+                    if (lock != null) {
+                        lock.close();
+                    }
+                }
+                from = to;
+            }
+            out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("multipart/mixed;boundary=" + boundary))
+                .body(counted("getRegions", locked(first, request, body)));
+    }
+
+    /**
+     * Takes the read lock of the rows of the areas in {@code [from, to)} that have fragments.
+     *
+     * @return null if the charta was removed
+     */
+    private ChartaLockManager.RegionLock lockReadStored(Charta c, List<FragmentRegion> regions, boolean[] empty,
+                                                        int from, int to) {
+        int top = Integer.MAX_VALUE;
+        int bottom = 0;
+        for (int i = from; i < to; i++) {
+            if (!empty[i]) {
+                top = Math.min(top, regions.get(i).getY());
+                bottom = Math.max(bottom, regions.get(i).getY() + regions.get(i).getHeight());
+            }
+        }
+        return top < bottom ? lockReadStored(c, top, bottom - top) : lockReadStored(c, 0, 0);
+    }
+
+    /**
+     * Writes the parts of the areas in {@code [from, to)}. Several areas are read together in a single pass,
+     * a single area may be larger than the buffer budget and is streamed row by row instead.
+     */
+    private void writeRegions(Charta c, List<FragmentRegion> regions, boolean[] empty, int from, int to,
+                              boolean stored, String boundary, OutputStream out) throws IOException {
+        List<FragmentRegion> found = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (!empty[i]) {
+                found.add(regions.get(i));
+            }
+        }
+        boolean streamed = found.size() == 1
+                && ImageUtilsService.getBmpFileSize(found.get(0).getWidth(), found.get(0).getHeight()) > regionsBufferBytes;
+        List<byte[]> fragments = !stored || found.isEmpty() || streamed ? List.of() : imageUtils.readFragments(c, found);
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            FragmentRegion r = regions.get(i);
+            if (empty[i] || !stored) {
+                byte[] text = (empty[i] ? "no fragment in given area" : "charta was removed").getBytes(StandardCharsets.UTF_8);
+                writePartHeaders(out, boundary, r, empty[i] ? HttpStatus.BAD_REQUEST : HttpStatus.NOT_FOUND,
+                        MediaType.TEXT_PLAIN_VALUE, text.length);
+                out.write(text);
+            } else if (streamed) {
+                writePartHeaders(out, boundary, r, HttpStatus.OK, "image/bmp",
+                        ImageUtilsService.getBmpFileSize(r.getWidth(), r.getHeight()));
+                imageUtils.readFragment(c, r.getX(), r.getY(), r.getWidth(), r.getHeight(), out);
+            } else {
+                byte[] part = fragments.get(next++);
+                writePartHeaders(out, boundary, r, HttpStatus.OK, "image/bmp", part.length);
+                out.write(part);
+            }
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void writePartHeaders(OutputStream out, String boundary, FragmentRegion r, HttpStatus status,
+                                         String contentType, long length) throws IOException {
+        String headers = "--" + boundary + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "X-Status: " + status.value() + "\r\n"
+                + "X-Region: " + r.getX() + "," + r.getY() + "," + r.getWidth() + "," + r.getHeight() + "\r\n"
+                + "Content-Length: " + length + "\r\n\r\n";
+        out.write(headers.getBytes(StandardCharsets.US_ASCII));
     }
 
     @DeleteMapping("/{id}")
@@ -123,10 +517,184 @@ public class ChartasController {
         if (!verifyId(id)) {
             return ResponseEntity.badRequest().build();
         }
-        if (imageUtils.deleteCharta(id)) {
-            return ResponseEntity.ok().build();
+        Charta c = chartaRepository.findById(id).orElse(null);
+        if (c == null) {
+            return ResponseEntity.notFound().build();
+        }
+        // wait for running reads and writes, later ones find the charta gone
+        try (ChartaLockManager.RegionLock lock = lockManager.lockAll(c)) {
+            if (!isStored(c)) {
+                return ResponseEntity.notFound().build();
+            }
+            // logged first: a removal that can't be logged leaves the charta intact,
+            // and a crash after removing the files can't replay an older CREATE back
+            chartaJournal.logDelete(id);
+            try {
+                chartaRepository.delete(id);
+                imageUtils.deleteCharta(id);
+                fragmentCache.invalidate(id);
+                lockManager.remove(id);
+            } finally {
+                chartaJournal.deleteApplied(id);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError().build();
         }
-        return ResponseEntity.notFound().build();
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * Reads every frame of a batch upload, or returns null if the frames exceed the batch size limit.
+     *
+     * @throws MalformedBatchException if a frame has a negative length
+     */
+    private List<FragmentPart> readFragmentParts(InputStream is) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(is);
+        DataInputStream in = new DataInputStream(buffered);
+        List<FragmentPart> parts = new ArrayList<>();
+        long total = 0;
+        while (true) {
+            buffered.mark(1);
+            if (buffered.read() < 0) {
+                return parts;
+            }
+            buffered.reset();
+            int x = in.readInt();
+            int y = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new MalformedBatchException("Negative frame length " + length);
+            }
+            total += length;
+            if (total > maxBatchBytes) {
+                return null;
+            }
+            byte[] bmp = new byte[length];
+            in.readFully(bmp);
+            parts.add(new FragmentPart(parts.size(), x, y, width, height, bmp));
+        }
+    }
+
+    private static <T> DeferredResult<T> completed(T value) {
+        DeferredResult<T> result = new DeferredResult<>();
+        result.setResult(value);
+        return result;
+    }
+
+    private StreamingResponseBody encoded(boolean gzip, StreamingResponseBody body) {
+        if (!gzip) {
+            return body;
+        }
+        return out -> {
+            long start = System.nanoTime();
+            ParallelDeflaterOutputStream compressed = compressor.gzip(out);
+            body.writeTo(compressed);
+            compressed.finish();
+            metrics.recordStage(ChartaMetrics.STAGE_ENCODE, start);
+        };
+    }
+
+    private StreamingResponseBody counted(String operation, StreamingResponseBody body) {
+        return out -> {
+            CountingOutputStream counting = new CountingOutputStream(out);
+            try {
+                body.writeTo(counting);
+            } finally {
+                metrics.recordBytesOut(operation, counting.getCount());
+            }
+        };
+    }
+
+    private boolean prefersPng(String accept) {
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.isCompatibleWith(BMP)) {
+                return false;
+            }
+            if (mediaType.isCompatibleWith(MediaType.IMAGE_PNG)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acceptsGzip(String acceptEncoding) {
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private FragmentRegion parseRegion(String param) {
+        String[] values = param.split(",");
+        if (values.length != 4) {
+            return null;
+        }
+        try {
+            return new FragmentRegion(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+                    Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks under a lock of the charta that it wasn't removed since it was looked up.
+     * If it was, the locks recreated by taking that lock are dropped again.
+     */
+    private boolean isStored(Charta c) {
+        if (chartaRepository.findById(c.getId()).orElse(null) == c) {
+            return true;
+        }
+        lockManager.remove(c.getId());
+        return false;
+    }
+
+    /**
+     * Takes the read lock of the rows on the request thread, so a charta removed meanwhile is answered
+     * with 404 before the response is committed. The lock is handed over to the body, see {@link #locked}.
+     *
+     * @return null if the charta was removed
+     */
+    private ChartaLockManager.RegionLock lockReadStored(Charta c, int y, int height) {
+        ChartaLockManager.RegionLock lock = lockManager.lockRead(c, y, height);
+        if (!isStored(c)) {
+            lock.close();
+            return null;
+        }
+        return lock;
+    }
+
+    /**
+     * Releases {@code lock} once the body is written, or when the request ends if the body never runs.
+     */
+    private StreamingResponseBody locked(ChartaLockManager.RegionLock lock, HttpServletRequest request,
+                                         StreamingResponseBody body) {
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(lock, new CallableProcessingInterceptor() {
+            @Override
+            public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+                lock.close();
+            }
+        });
+        return out -> {
+            try {
+                body.writeTo(out);
+            } finally {
+                lock.close();
+            }
+        };
     }
 
     private boolean verifyId(int id) {
@@ -147,5 +715,29 @@ public class ChartasController {
         return x >= 0 && y >= 0;
     }
 
+    private static final class MalformedBatchException extends IOException {
+        private MalformedBatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class FragmentPart {
+        private final int index;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final byte[] bmp;
+
+        private FragmentPart(int index, int x, int y, int width, int height, byte[] bmp) {
+            this.index = index;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.bmp = bmp;
+        }
+    }
+
 
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.example.chartographer.web.controllers;
+
+import com.example.chartographer.image.ChartaHandles;
+import com.example.chartographer.image.DirectBufferPool;
+import com.example.chartographer.image.IngestPipeline;
+import com.example.chartographer.web.cache.FragmentCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/stats")
+public class StatsController {
+
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private IngestPipeline ingestPipeline;
+
+    @Autowired
+    private DirectBufferPool bufferPool;
+
+    @Autowired
+    private ChartaHandles handles;
+
+    @GetMapping("/cache")
+    private FragmentCache.Stats getCacheStats() {
+        return fragmentCache.getStats();
+    }
+
+    @GetMapping("/ingest")
+    private Map<String, Long> getIngestStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("buffersWritten", ingestPipeline.getBuffersWritten());
+        stats.put("backpressureWaits", ingestPipeline.getBackpressureWaits());
+        stats.put("backpressureNanos", ingestPipeline.getBackpressureNanos());
+        return stats;
+    }
+
+    @GetMapping("/buffers")
+    private Map<String, Long> getBufferStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("leases", bufferPool.getLeases());
+        stats.put("allocations", bufferPool.getAllocations());
+        stats.put("allocatedBytes", bufferPool.getAllocatedBytes());
+        stats.put("outstanding", bufferPool.getOutstanding());
+        stats.put("idle", bufferPool.getIdle());
+        stats.put("discards", bufferPool.getDiscards());
+        return stats;
+    }
+
+    @GetMapping("/handles")
+    private Map<String, Object> getHandleStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("open", handles.getOpen());
+        stats.put("hits", handles.getHits());
+        stats.put("misses", handles.getMisses());
+        stats.put("evictions", handles.getEvictions());
+        stats.put("hitRatio", handles.getHitRatio());
+        return stats;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.chartographer.web.upload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Request body received before the rows it is written to are locked. The first {@code memoryLimit} bytes
+ * are kept in memory, the rest goes to a temporary file removed when the spool is closed.
+ * Written completely first, then read back once. Not thread-safe.
+ */
+final class BodySpool implements Closeable {
+    private static final int INITIAL_CAPACITY = 16384;
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    private final int memoryLimit;
+    private byte[] memory = new byte[0];
+    private int memorySize;
+    private FileChannel file;
+    private long fileSize;
+    private long readPosition;
+    private ByteBuffer readBuffer;
+
+    BodySpool(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Number of bytes written so far.
+     */
+    long size() {
+        return memorySize + fileSize;
+    }
+
+    void write(byte[] b, int offset, int length) throws IOException {
+        int n = Math.min(length, memoryLimit - memorySize);
+        if (n > 0) {
+            if (memorySize + n > memory.length) {
+                int capacity = Math.max(memory.length * 2, INITIAL_CAPACITY);
+                byte[] grown = new byte[Math.min(memoryLimit, Math.max(capacity, memorySize + n))];
+                System.arraycopy(memory, 0, grown, 0, memorySize);
+                memory = grown;
+            }
+            System.arraycopy(b, offset, memory, memorySize, n);
+            memorySize += n;
+        }
+        if (n < length) {
+            if (file == null) {
+                Path path = Files.createTempFile("chartographer-upload-", ".part");
+                file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer src = ByteBuffer.wrap(b, offset + n, length - n);
+            while (src.hasRemaining()) {
+                fileSize += file.write(src, fileSize);
+            }
+        }
+    }
+
+    /**
+     * Returns the next bytes of the body, or null at its end. The buffer stays unchanged until the next call.
+     */
+    ByteBuffer next() throws IOException {
+        if (readPosition < memorySize) {
+            ByteBuffer data = ByteBuffer.wrap(memory, (int) readPosition, memorySize - (int) readPosition);
+            readPosition = memorySize;
+            return data;
+        }
+        long filePosition = readPosition - memorySize;
+        if (filePosition >= fileSize) {
+            return null;
+        }
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        readBuffer.clear().limit((int) Math.min(READ_BUFFER_SIZE, fileSize - filePosition));
+        while (readBuffer.hasRemaining()) {
+            if (file.read(readBuffer, filePosition + readBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of the spooled body");
+            }
+        }
+        readPosition += readBuffer.position();
+        return readBuffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        memory = null;
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.example.chartographer.web.upload;
+
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ChartaLockManager;
+import com.example.chartographer.image.FragmentDecoder;
+import com.example.chartographer.metrics.ChartaMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives fragment uploads with servlet non-blocking I/O, so a slow client doesn't hold a container thread
+ * while its body trickles in. The request thread returns as soon as the upload is set up; data is spooled
+ * on the container threads whenever it becomes available, see {@link BodySpool}. Only once the whole body is there
+ * the write lock of the rows is requested, so a slow client doesn't hold back the requests reading them either.
+ * The spooled body is then decoded into the charta on a fixed number of upload threads, which also take the steps
+ * waiting for the disk or the journal; when every ingest buffer of the upload waits for the disk, decoding stops
+ * until a writer frees one. The response is sent once the last row is stored.
+ * Containers without non-blocking I/O, e.g. MockMvc, get a thread reading the body blocking.
+ */
+@Component
+public class FragmentUploads {
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    @Autowired
+    private ChartaLockManager lockManager;
+
+    @Autowired
+    private ChartaMetrics metrics;
+
+    @Value("${chartographer.upload.timeout-ms:600000}")
+    private long timeoutMs;
+
+    @Value("${chartographer.upload.memory-bytes:1048576}")
+    private int memoryBytes;
+
+    @Value("${chartographer.upload.threads:0}")
+    private int threads;
+
+    private ExecutorService readers;
+
+    @PostConstruct
+    private void start() {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        // steps of more uploads queue up, none of them waits for another step
+        readers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "charta-upload-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Receives the request body, then locks rows {@code [y, y + height)} of the charta for writing and feeds
+     * the body to {@code decoder}, calling {@code handler} around it. The lock is released before the response is sent.
+     * A body larger than twice the fragment as an uncompressed 32-bit image, plus a megabyte for headers
+     * and metadata, is answered with 413.
+     */
+    public DeferredResult<ResponseEntity<Void>> receive(HttpServletRequest request, Charta c, int y, int height,
+                                                        FragmentDecoder decoder, Handler handler) {
+        DeferredResult<ResponseEntity<Void>> result = new DeferredResult<>(timeoutMs);
+        Upload upload = new Upload(c, y, height, decoder, handler, result);
+        result.onTimeout(() -> upload.complete(HttpStatus.REQUEST_TIMEOUT));
+        result.onError(e -> upload.complete(HttpStatus.INTERNAL_SERVER_ERROR));
+        // e.g. the client went away
+        result.onCompletion(() -> upload.complete(HttpStatus.INTERNAL_SERVER_ERROR));
+        // the read listener can only be set once the request is in async mode
+        WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(upload,
+                new DeferredResultProcessingInterceptor() {
+                    @Override
+                    public <T> void preProcess(NativeWebRequest webRequest, DeferredResult<T> deferredResult) throws IOException {
+                        upload.start(webRequest.getNativeRequest(HttpServletRequest.class).getInputStream());
+                    }
+                });
+        return result;
+    }
+
+    @PreDestroy
+    private void stop() {
+        readers.shutdownNow();
+    }
+
+    /**
+     * Steps of storing an upload, all run while its rows are locked for writing.
+     */
+    public interface Handler {
+        /**
+         * Runs once the lock is granted, before the body is decoded.
+         *
+         * @return false if the charta was removed meanwhile, the upload is then answered with 404
+         */
+        boolean begin() throws IOException;
+
+        /**
+         * Runs once every row of the fragment is stored.
+         */
+        void commit() throws IOException;
+
+        /**
+         * Runs instead of {@link #commit} if the upload fails after {@link #begin}.
+         */
+        void abort() throws IOException;
+    }
+
+    private final class Upload implements ReadListener {
+        private final Charta charta;
+        private final int y;
+        private final int height;
+        private final FragmentDecoder decoder;
+        private final Handler handler;
+        private final DeferredResult<ResponseEntity<Void>> result;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private final BodySpool spool = new BodySpool(memoryBytes);
+        private final long maxBodySize;
+        private ServletInputStream in;
+        private ChartaLockManager.RegionLock lock;
+        // spooled data not taken by the decoder yet, because every ingest buffer waits for the disk
+        private ByteBuffer stalled;
+        private boolean received;
+        // a step runs on the readers outside the monitor, it releases the upload if it completes meanwhile
+        private boolean busy;
+        // a writer freed a buffer while a step was running, which then drains again
+        private boolean resume;
+        // begun and neither committed nor aborted yet
+        private boolean open;
+        private boolean committing;
+        private boolean done;
+        private HttpStatus status;
+
+        private Upload(Charta charta, int y, int height, FragmentDecoder decoder, Handler handler,
+                       DeferredResult<ResponseEntity<Void>> result) {
+            this.charta = charta;
+            this.y = y;
+            this.height = height;
+            this.decoder = decoder;
+            this.handler = handler;
+            this.result = result;
+            this.maxBodySize = 8L * decoder.getWidth() * decoder.getHeight() + (1 << 20);
+        }
+
+        private void start(ServletInputStream in) {
+            boolean blocking = false;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.in = in;
+                try {
+                    in.setReadListener(this);
+                } catch (UnsupportedOperationException | IllegalStateException e) {
+                    blocking = true;
+                }
+            }
+            if (blocking) {
+                readers.execute(this::readBlocking);
+            }
+        }
+
+        @Override
+        public synchronized void onDataAvailable() {
+            if (done || received) {
+                return;
+            }
+            try {
+                while (!done && in.isReady()) {
+                    int read = in.read(buffer);
+                    if (read < 0) {
+                        onAllDataRead();
+                        return;
+                    }
+                    if (!spool(read)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                onError(e);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                complete(HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        @Override
+        public synchronized void onAllDataRead() {
+            if (done || received) {
+                return;
+            }
+            received = true;
+            // the grant may come from a thread releasing its own lock, the body is decoded elsewhere
+            lock = lockManager.lockWriteAsync(charta, y, height, () -> readers.execute(this::onLocked));
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            complete(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        private void readBlocking() {
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    synchronized (this) {
+                        if (done || !spool(read)) {
+                            return;
+                        }
+                    }
+                }
+                onAllDataRead();
+            } catch (IOException e) {
+                onError(e);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                complete(HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        private boolean spool(int read) throws IOException {
+            if (spool.size() + read > maxBodySize) {
+                complete(HttpStatus.PAYLOAD_TOO_LARGE);
+                return false;
+            }
+            spool.write(buffer, 0, read);
+            return true;
+        }
+
+        private void onLocked() {
+            if (!beginStep()) {
+                return;
+            }
+            HttpStatus failure = null;
+            try {
+                if (!handler.begin()) {
+                    failure = HttpStatus.NOT_FOUND;
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                failure = HttpStatus.INTERNAL_SERVER_ERROR;
+            }
+            synchronized (this) {
+                open = failure == null;
+            }
+            if (failure != null) {
+                complete(failure);
+            }
+            drainSteps();
+        }
+
+        private void onWritable() {
+            if (beginStep()) {
+                drainSteps();
+            }
+        }
+
+        private void drainSteps() {
+            do {
+                drain();
+            } while (endStep());
+        }
+
+        /**
+         * Feeds the spooled body to the decoder until it stalls, fails or ends, and stores the fragment at the end.
+         */
+        private void drain() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        if (done) {
+                            return;
+                        }
+                    }
+                    ByteBuffer data = stalled != null ? stalled : spool.next();
+                    if (data == null) {
+                        store();
+                        return;
+                    }
+                    if (!decoder.offer(data)) {
+                        complete(HttpStatus.BAD_REQUEST);
+                        return;
+                    }
+                    if (decoder.isStalled()) {
+                        // the writer freeing an ingest buffer resumes, the data stays unchanged meanwhile
+                        stalled = data;
+                        decoder.whenWritable(() -> readers.execute(this::onWritable));
+                        return;
+                    }
+                    stalled = null;
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                complete(HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        /**
+         * Waits for the last rows and commits the fragment.
+         */
+        private void store() {
+            HttpStatus outcome = HttpStatus.OK;
+            try {
+                if (!decoder.finish()) {
+                    outcome = HttpStatus.BAD_REQUEST;
+                } else {
+                    synchronized (this) {
+                        if (done) {
+                            return;
+                        }
+                        committing = true;
+                        // a failed commit isn't rolled back, the journal decides at the next startup
+                        open = false;
+                    }
+                    handler.commit();
+                }
+            } catch (NoSuchFileException e) {
+                outcome = HttpStatus.NOT_FOUND;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                outcome = HttpStatus.INTERNAL_SERVER_ERROR;
+            }
+            synchronized (this) {
+                committing = false;
+            }
+            complete(outcome);
+        }
+
+        /**
+         * Ends the upload unless it has ended already or is being committed. A failure is answered at once;
+         * the upload is released, after the step running now if any, on the readers.
+         */
+        private void complete(HttpStatus status) {
+            synchronized (this) {
+                if (done || committing) {
+                    return;
+                }
+                done = true;
+                this.status = status;
+                if (!busy) {
+                    busy = true;
+                    readers.execute(this::release);
+                }
+            }
+            if (status != HttpStatus.OK) {
+                result.setResult(ResponseEntity.status(status).build());
+            }
+        }
+
+        /**
+         * Starts a step on the readers, unless the upload completed or another step runs; that one then drains again.
+         */
+        private synchronized boolean beginStep() {
+            if (done) {
+                return false;
+            }
+            if (busy) {
+                resume = true;
+                return false;
+            }
+            busy = true;
+            return true;
+        }
+
+        /**
+         * Ends a step, releasing the upload if it completed meanwhile.
+         *
+         * @return true if a writer freed a buffer meanwhile and the step has to drain again
+         */
+        private boolean endStep() {
+            synchronized (this) {
+                if (!done) {
+                    if (resume) {
+                        resume = false;
+                        return true;
+                    }
+                    busy = false;
+                    return false;
+                }
+            }
+            release();
+            return false;
+        }
+
+        /**
+         * Waits for the writers, rolls back an upload that failed after it began, then unlocks the rows and answers.
+         * Runs once no step runs anymore, and nothing is spooled or fed after {@link #complete}.
+         */
+        private void release() {
+            try {
+                decoder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ChartaLockManager.RegionLock rows;
+            boolean rollBack;
+            synchronized (this) {
+                rows = lock;
+                rollBack = open;
+                open = false;
+            }
+            if (rollBack) {
+                // the rows written so far are put back while they are still locked
+                try {
+                    handler.abort();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (rows != null) {
+                // withdraws the request if the lock isn't granted yet
+                rows.close();
+            }
+            metrics.recordBytesIn("save", spool.size());
+            try {
+                spool.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            result.setResult(ResponseEntity.status(status).build());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.chartographer;
+
+import com.example.chartographer.config.ChartaIdAllocator;
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ImageUtilsService;
+import com.example.chartographer.image.RowBandExecutor;
+import com.example.chartographer.storage.ChartaRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads areas of a charta split into small bands of rows and one row at a time, and checks that both give
+ * the same bytes, including rows and columns outside the charta.
+ */
+class BandedReadTests {
+    private static final Path WORK_DIR = Path.of("target/banded-read-test");
+
+    @Test
+    public void bandedReadsMatchSequentialReads() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/FLAG_B24.BMP"));
+        int[][] areas = {{0, 0, 300, 200}, {200, 100, 150, 150}, {250, 150, 124, 124}, {0, 195, 10, 30}, {310, 0, 20, 20}};
+
+        try (ConfigurableApplicationContext context = start()) {
+            ImageUtilsService imageUtils = context.getBean(ImageUtilsService.class);
+            RowBandExecutor bands = context.getBean(RowBandExecutor.class);
+            Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), 300, 200);
+            imageUtils.createChartaImage(c);
+            context.getBean(ChartaRepository.class).save(c);
+            Assert.isTrue(imageUtils.appendToImage(c, new ByteArrayInputStream(flag), c.getId(), 176, 76, 124, 124),
+                    "Fragment must be saved");
+            Assert.isTrue(bands.isParallel(1), "Reads must be split into bands");
+
+            for (int[] area : areas) {
+                for (int level = 0; level < 2; level++) {
+                    byte[] banded = read(imageUtils, c, level, area);
+                    ReflectionTestUtils.setField(bands, "thresholdBytes", Long.MAX_VALUE);
+                    byte[] sequential = read(imageUtils, c, level, area);
+                    ReflectionTestUtils.setField(bands, "thresholdBytes", 1L);
+                    Assert.isTrue(Arrays.equals(banded, sequential),
+                            "Banded read of " + Arrays.toString(area) + " at level " + level + " must match");
+                }
+            }
+        }
+    }
+
+    private static byte[] read(ImageUtilsService imageUtils, Charta c, int level, int[] area) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        imageUtils.readPreview(c, level, area[0] >> level, area[1] >> level, area[2], area[3], out);
+        return out.toByteArray();
+    }
+
+    private ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(ChartographerApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.main.banner-mode=off")
+                .run(WORK_DIR.toString(), "--chartographer.bands.threshold-bytes=1",
+                        "--chartographer.bands.rows=7", "--chartographer.bands.parallelism=4");
+    }
+}
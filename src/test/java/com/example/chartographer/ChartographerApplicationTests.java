@@ -1,32 +1,66 @@
 package com.example.chartographer;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
+import com.example.chartographer.config.ChartaIdAllocator;
+import com.example.chartographer.config.StartupRunner;
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ChartaLockManager;
 import com.example.chartographer.image.ImageUtilsService;
+import com.example.chartographer.storage.ChartaRepository;
+import com.example.chartographer.web.cache.FragmentCache;
+import com.example.chartographer.web.controllers.ChartasController;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.autoconfigure.web.servlet.MockMvcPrint;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(args = ChartographerApplicationTests.WORK_DIR)
 @AutoConfigureMockMvc(print = MockMvcPrint.NONE)
+@AutoConfigureMetrics
 @TestMethodOrder(MethodOrderer.DisplayName.class)
 class ChartographerApplicationTests {
+    // the metadata is flushed when the cached context shuts down, after the tests, so it is left in target
+    static final String WORK_DIR = "target/application-test";
 
     @Autowired
     private MockMvc mockMvc;
@@ -34,12 +68,29 @@ class ChartographerApplicationTests {
     @Autowired
     private ImageUtilsService imageUtils;
 
-    @AfterAll
+    @Autowired
+    private FragmentCache fragmentCache;
+
+    @Autowired
+    private ChartaIdAllocator idAllocator;
+
+    @Autowired
+    private ChartaRepository chartaRepository;
+
+    @Autowired
+    private ChartaLockManager lockManager;
+
+    @Autowired
+    private ChartasController chartasController;
+
     @BeforeAll
-    public static void cleanup() throws IOException {
-        Files.deleteIfExists(Path.of("1.bmp"));
-        Files.deleteIfExists(Path.of("1.json"));
-        Files.deleteIfExists(Path.of("options.json"));
+    public static void createWorkDir() throws IOException {
+        createWorkDir(WORK_DIR);
+    }
+
+    static void createWorkDir(String path) throws IOException {
+        FileSystemUtils.deleteRecursively(Path.of(path));
+        Files.createDirectories(Path.of(path));
     }
 
     @Test
@@ -102,6 +153,10 @@ class ChartographerApplicationTests {
         byte[] img = Files.readAllBytes(Path.of("bmp_samples/" + "sample_1280x853.bmp"));
         saveFragment(1, 30000, 20000, 10, 20, img)
                 .andExpect(status().isBadRequest());
+        // x + width overflows
+        byte[] pixel = Files.readAllBytes(Path.of("bmp_samples/" + "green_pixel.bmp"));
+        saveFragment(1, 1, 1, Integer.MAX_VALUE, 20, pixel)
+                .andExpect(status().isBadRequest());
     }
 
     @Test
@@ -122,6 +177,332 @@ class ChartographerApplicationTests {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void test9_getFragmentOutOfBounds() throws Exception {
+        byte[] pixel = Files.readAllBytes(Path.of("bmp_samples/" + "green_pixel.bmp"));
+        saveFragment(1, 1, 1, 3000, 5000, pixel)
+                .andExpect(status().isOk());
+        getFragment(1, 2, 2, 3000, 5000)
+                .andExpect(status().isOk())
+                .andExpect(result -> {
+                    byte[] body = result.getResponse().getContentAsByteArray();
+                    byte[] expectedPixels = {
+                            0, 0, 0, 0, 0, 0, 0, 0,
+                            0x25, (byte) 0xF8, 0x18, 0, 0, 0, 0, 0
+                    };
+                    Assert.isTrue(Arrays.equals(expectedPixels, 0, expectedPixels.length,
+                            body, body.length - expectedPixels.length, body.length),
+                            "Pixels outside the charta must be black");
+                });
+    }
+
+    @Test
+    public void test91_repeatedFragmentServedFromCache() throws Exception {
+        long hits = fragmentCache.getStats().getHits();
+        getFragment(1, 10, 10, 10, 10)
+                .andExpect(status().isOk());
+        getFragment(1, 10, 10, 10, 10)
+                .andExpect(status().isOk());
+        Assert.isTrue(fragmentCache.getStats().getHits() == hits + 1, "Repeated fragment must be cached");
+
+        byte[] pixel = Files.readAllBytes(Path.of("bmp_samples/" + "green_pixel.bmp"));
+        saveFragment(1, 1, 1, 15, 15, pixel)
+                .andExpect(status().isOk());
+        getFragment(1, 10, 10, 10, 10)
+                .andExpect(status().isOk())
+                .andExpect(result -> {
+                    byte[] body = result.getResponse().getContentAsByteArray();
+                    // pixel (5, 5) of a bottom-up 10x10 BMP with 32-byte rows
+                    int offset = body.length - 6 * 32 + 5 * 3;
+                    Assert.isTrue(Arrays.equals(pixel, pixel.length - 4, pixel.length - 1, body, offset, offset + 3),
+                            "Saved fragment must invalidate the cached area");
+                });
+    }
+
+    @Test
+    public void test92_saveFragmentsBatch() throws Exception {
+        byte[] pixel = Files.readAllBytes(Path.of("bmp_samples/" + "green_pixel.bmp"));
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/" + "FLAG_B24.BMP"));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(body);
+        for (int[] frame : new int[][]{{700, 700, 1, 1}, {3000, 3000, 124, 124}, {600, 600, 124, 124},
+                {Integer.MAX_VALUE, 700, 1, 1}}) {
+            byte[] img = frame[2] == 1 ? pixel : flag;
+            frames.writeInt(frame[0]);
+            frames.writeInt(frame[1]);
+            frames.writeInt(frame[2]);
+            frames.writeInt(frame[3]);
+            frames.writeInt(img.length);
+            frames.write(img);
+        }
+
+        mockMvc.perform(post("/chartas/1/fragments").content(body.toByteArray()))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[200, 400, 200, 400]"));
+        getFragment(1, 1, 1, 700, 700)
+                .andExpect(status().isOk())
+                .andExpect(result -> {
+                    byte[] fragment = result.getResponse().getContentAsByteArray();
+                    Assert.isTrue(Arrays.equals(pixel, pixel.length - 4, pixel.length - 1,
+                            fragment, fragment.length - 4, fragment.length - 1), "Batch fragment must be saved");
+                });
+
+        ByteArrayOutputStream malformed = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(malformed);
+        for (int field : new int[]{0, 0, 1, 1, -1}) {
+            frame.writeInt(field);
+        }
+        mockMvc.perform(post("/chartas/1/fragments").content(malformed.toByteArray()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void test93_getRegionsMultipart() throws Exception {
+        byte[] single = getFragment(1, 124, 124, 600, 600)
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        completeAsync(mockMvc.perform(get("/chartas/1/regions")
+                .queryParam("region", "600,600,124,124", "0,0,10,10", "650,650,124,124")))
+                .andExpect(status().isOk())
+                .andExpect(result -> {
+                    Assert.isTrue(result.getResponse().getContentType().startsWith("multipart/mixed"), "Multipart expected");
+                    byte[] body = result.getResponse().getContentAsByteArray();
+                    String text = new String(body, StandardCharsets.ISO_8859_1);
+                    Assert.isTrue(text.indexOf(new String(single, StandardCharsets.ISO_8859_1)) > 0,
+                            "Region must match the single fragment");
+                    Assert.isTrue(text.indexOf("X-Status: 400") > text.indexOf("X-Region: 600,600,124,124")
+                            && text.indexOf("X-Status: 400") < text.indexOf("X-Region: 650,650,124,124"),
+                            "Parts must keep request order");
+                });
+        completeAsync(mockMvc.perform(get("/chartas/1/regions").queryParam("region", "1,2,3")))
+                .andExpect(status().isBadRequest());
+
+        // areas read one window at a time, or streamed alone when larger than the buffer, give the same parts
+        String[] regions = {"600,600,124,124", "0,0,10,10", "650,650,124,124", "2990,0,20,20"};
+        String together = getRegionParts(regions);
+        Object bufferBytes = ReflectionTestUtils.getField(chartasController, "regionsBufferBytes");
+        try {
+            for (long budget : new long[] {ImageUtilsService.getBmpFileSize(124, 124), 1}) {
+                ReflectionTestUtils.setField(chartasController, "regionsBufferBytes", budget);
+                Assert.isTrue(together.equals(getRegionParts(regions)), "Windowed parts must match");
+            }
+        } finally {
+            ReflectionTestUtils.setField(chartasController, "regionsBufferBytes", bufferBytes);
+        }
+    }
+
+    private String getRegionParts(String... regions) throws Exception {
+        MvcResult result = completeAsync(mockMvc.perform(get("/chartas/1/regions").queryParam("region", regions)))
+                .andExpect(status().isOk())
+                .andReturn();
+        String contentType = result.getResponse().getContentType();
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        return new String(result.getResponse().getContentAsByteArray(), StandardCharsets.ISO_8859_1)
+                .replace(boundary, "boundary");
+    }
+
+    @Test
+    public void test94_getPreview() throws Exception {
+        byte[] full = getFragment(1, 124, 124, 50, 50)
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        byte[] preview = completeAsync(mockMvc.perform(get("/chartas/1/preview")
+                .queryParam("scale", "2")
+                .queryParam("x", "50")
+                .queryParam("y", "50")
+                .queryParam("width", "124")
+                .queryParam("height", "124")))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+        for (int row = 0; row < 62; row++) {
+            for (int column = 0; column < 62; column++) {
+                for (int component = 0; component < 3; component++) {
+                    int sum = pixel(full, 124, 124, row * 2, column * 2, component)
+                            + pixel(full, 124, 124, row * 2, column * 2 + 1, component)
+                            + pixel(full, 124, 124, row * 2 + 1, column * 2, component)
+                            + pixel(full, 124, 124, row * 2 + 1, column * 2 + 1, component);
+                    Assert.isTrue((sum + 2) / 4 == pixel(preview, 62, 62, row, column, component),
+                            "Preview must be the box filtered fragment");
+                }
+            }
+        }
+
+        completeAsync(mockMvc.perform(get("/chartas/1/preview").queryParam("scale", "256")))
+                .andExpect(status().isOk());
+        completeAsync(mockMvc.perform(get("/chartas/1/preview").queryParam("scale", "3")))
+                .andExpect(status().isBadRequest());
+        // the area has to start inside the charta, at a multiple of the scale
+        completeAsync(mockMvc.perform(get("/chartas/1/preview").queryParam("scale", "1")
+                .queryParam("x", "3001").queryParam("width", "10").queryParam("height", "10")))
+                .andExpect(status().isBadRequest());
+        completeAsync(mockMvc.perform(get("/chartas/1/preview").queryParam("scale", "1")
+                .queryParam("y", "5001").queryParam("width", "10").queryParam("height", "10")))
+                .andExpect(status().isBadRequest());
+        completeAsync(mockMvc.perform(get("/chartas/1/preview").queryParam("scale", "2")
+                .queryParam("x", "51").queryParam("width", "10").queryParam("height", "10")))
+                .andExpect(status().isBadRequest());
+        completeAsync(mockMvc.perform(get("/chartas/1/preview").queryParam("scale", "4")
+                .queryParam("x", "2996").queryParam("width", "10").queryParam("height", "10")))
+                .andExpect(status().isOk())
+                .andExpect(result -> Assert.isTrue(result.getResponse().getContentAsByteArray().length
+                        == ImageUtilsService.getBmpFileSize(3, 3), "Preview must cover the area past the edge"));
+    }
+
+    @Test
+    public void test95_getFragmentCompressed() throws Exception {
+        byte[] bmp = getFragment(1, 1400, 1000, 0, 0)
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+
+        byte[] gzip = completeAsync(mockMvc.perform(get("/chartas/1")
+                .queryParam("width", "1400")
+                .queryParam("height", "1000")
+                .queryParam("x", "0")
+                .queryParam("y", "0")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn().getResponse().getContentAsByteArray();
+        Assert.isTrue(gzip.length < bmp.length, "Response must be compressed");
+        Assert.isTrue(Arrays.equals(bmp, new GZIPInputStream(new ByteArrayInputStream(gzip)).readAllBytes()),
+                "Decompressed response must match the BMP");
+
+        byte[] png = completeAsync(mockMvc.perform(get("/chartas/1")
+                .queryParam("width", "1400")
+                .queryParam("height", "1000")
+                .queryParam("x", "0")
+                .queryParam("y", "0")
+                .accept(MediaType.IMAGE_PNG)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andReturn().getResponse().getContentAsByteArray();
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(bmp));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png));
+        Assert.isTrue(actual.getWidth() == 1400 && actual.getHeight() == 1000, "PNG must keep the fragment size");
+        for (int row = 0; row < 1000; row++) {
+            for (int column = 0; column < 1400; column++) {
+                Assert.isTrue(expected.getRGB(column, row) == actual.getRGB(column, row), "PNG must match the BMP");
+            }
+        }
+    }
+
+    @Test
+    public void test96_prometheusMetrics() throws Exception {
+        mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("charta_stage_seconds_count{stage=\"row.read\"")))
+                .andExpect(content().string(containsString("charta_bytes_count{direction=\"out\",operation=\"get\"")))
+                .andExpect(content().string(containsString("charta_cache_hits_total")));
+    }
+
+    @Test
+    public void test97_concurrentIdAllocation() throws Exception {
+        int threads = 8;
+        int perThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<int[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                int[] ids = new int[perThread];
+                for (int i = 0; i < perThread; i++) {
+                    ids[i] = idAllocator.next();
+                }
+                return ids;
+            }));
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (Future<int[]> result : results) {
+            for (int id : result.get()) {
+                Assert.isTrue(ids.add(id), "Id " + id + " handed out twice");
+            }
+        }
+        executor.shutdown();
+        // every id handed out is covered by the reservation on the disk
+        String options = Files.readString(StartupRunner.getPathToWorkingDirectory().resolve("options.json"));
+        int reserved = Integer.parseInt(options.replaceAll("\\D+", ""));
+        Assert.isTrue(reserved >= Collections.max(ids), "Ids must be reserved before use, options: " + options);
+    }
+
+    @Test
+    public void test98_saveFragmentFormats() throws Exception {
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/" + "FLAG_B24.BMP"));
+        int size = 124;
+        int stride = size * 3;
+        byte[] topDown = bmp(size, -size, 24, stride * size);
+        byte[] bgra = bmp(size, size, 32, 4 * size * size);
+        for (int row = 0; row < size; row++) {
+            int from = 54 + row * stride;
+            System.arraycopy(flag, from, topDown, 54 + (size - 1 - row) * stride, stride);
+            for (int column = 0; column < size; column++) {
+                System.arraycopy(flag, from + column * 3, bgra, 54 + (row * size + column) * 4, 3);
+                bgra[54 + (row * size + column) * 4 + 3] = (byte) 0xFF;
+            }
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(flag));
+        BufferedImage withAlpha = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        withAlpha.getGraphics().drawImage(image, 0, 0, null);
+        ByteArrayOutputStream rgb = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", rgb);
+        ByteArrayOutputStream rgba = new ByteArrayOutputStream();
+        ImageIO.write(withAlpha, "png", rgba);
+
+        int x = 1000;
+        for (byte[] img : List.of(topDown, bgra, rgb.toByteArray(), rgba.toByteArray())) {
+            saveFragment(1, size, size, x, 1000, img)
+                    .andExpect(status().isOk());
+            getFragment(1, size, size, x, 1000)
+                    .andExpect(status().isOk())
+                    .andExpect(result -> {
+                        byte[] body = result.getResponse().getContentAsByteArray();
+                        Assert.isTrue(Arrays.equals(flag, 54, flag.length, body, 54, body.length),
+                                "Fragment must match the 24-bit original");
+                    });
+            x += size;
+        }
+        // the image must be the size of the fragment
+        saveFragment(1, size - 1, size, x, 1000, rgb.toByteArray())
+                .andExpect(status().isBadRequest());
+        saveFragment(1, size, size - 1, x, 1000, flag)
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void test99_readerOfRemovedChartaGets404() throws Exception {
+        int id = Integer.parseInt(createCharta(100, 100).andReturn().getResponse().getContentAsString());
+        byte[] pixel = Files.readAllBytes(Path.of("bmp_samples/" + "green_pixel.bmp"));
+        saveFragment(id, 1, 1, 10, 10, pixel)
+                .andExpect(status().isOk());
+        Charta c = chartaRepository.findById(id).orElseThrow();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> read;
+            // removes the charta the way a DELETE does, while the read waits for its rows
+            try (ChartaLockManager.RegionLock lock = lockManager.lockAll(c)) {
+                read = executor.submit(() -> getFragment(id, 1, 1, 10, 10).andReturn().getResponse().getStatus());
+                Thread.sleep(200);
+                chartaRepository.delete(id);
+                imageUtils.deleteCharta(id);
+                lockManager.remove(id);
+            }
+            Assert.isTrue(read.get() == 404, "Read of a removed charta must answer 404");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] bmp(int width, int height, int bitCount, int imageSize) {
+        byte[] bmp = new byte[54 + imageSize];
+        ByteBuffer.wrap(bmp).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) 0x4D42).putInt(bmp.length).putInt(0).putInt(54)
+                .putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) bitCount);
+        return bmp;
+    }
+
+    private static int pixel(byte[] bmp, int width, int height, int row, int column, int component) {
+        int stride = (width * 3 + 3) / 4 * 4;
+        return bmp[54 + (height - 1 - row) * stride + column * 3 + component] & 0xFF;
+    }
+
     private void saveAndGetFragmentDefault(int id, int width, int height, int x, int y, String filename) throws Exception {
         byte[] original = Files.readAllBytes(Path.of("bmp_samples/" + filename));
         int originalHeaderSize = imageUtils.validateBmpHeader(original);
@@ -142,19 +523,26 @@ class ChartographerApplicationTests {
     }
 
     private ResultActions getFragment(int id, int width, int height, int x, int y) throws Exception {
-        return mockMvc.perform(get("/chartas/" + id)
+        ResultActions actions = mockMvc.perform(get("/chartas/" + id)
                 .queryParam("width", width + "")
                 .queryParam("height", height + "")
                 .queryParam("x", x + "")
                 .queryParam("y", y + ""));
+        return completeAsync(actions);
+    }
+
+    private ResultActions completeAsync(ResultActions actions) throws Exception {
+        MvcResult result = actions.andReturn();
+        return result.getRequest().isAsyncStarted() ? mockMvc.perform(asyncDispatch(result)) : actions;
     }
 
     private ResultActions saveFragment(int id, int width, int height, int x, int y, byte[] imgBytes) throws Exception {
-        return mockMvc.perform(post("/chartas/" + id).content(imgBytes)
+        ResultActions actions = mockMvc.perform(post("/chartas/" + id).content(imgBytes)
                 .queryParam("width", width + "")
                 .queryParam("height", height + "")
                 .queryParam("x", x + "")
                 .queryParam("y", y + ""));
+        return completeAsync(actions);
 
     }
 
@@ -0,0 +1,277 @@
+package com.example.chartographer;
+
+import com.example.chartographer.config.ChartaIdAllocator;
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ImagePiece;
+import com.example.chartographer.image.ImageUtilsService;
+import com.example.chartographer.storage.ChartaJournal;
+import com.example.chartographer.storage.ChartaRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Restarts the application on a working directory that lost every metadata file written after the journal,
+ * as after a crash, and checks that the journal restores it.
+ */
+class JournalRecoveryTests {
+    private static final Path WORK_DIR = Path.of("target/journal-recovery-test");
+    private static final int BMP_HEADER_SIZE = 54;
+
+    @Test
+    public void journalRestoresMetadataLostInCrash() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/FLAG_B24.BMP"));
+
+        int kept;
+        int deleted;
+        try (ConfigurableApplicationContext context = start()) {
+            ChartaRepository repository = context.getBean(ChartaRepository.class);
+            ChartaJournal journal = context.getBean(ChartaJournal.class);
+            ImageUtilsService imageUtils = context.getBean(ImageUtilsService.class);
+            ChartaIdAllocator idAllocator = context.getBean(ChartaIdAllocator.class);
+
+            Charta c = new Charta(idAllocator.next(), 500, 500);
+            imageUtils.createChartaImage(c);
+            journal.logCreate(c);
+            ImagePiece piece = new ImagePiece(124, 124, 10, 20);
+            ChartaJournal.FragmentWrite write = journal.begin(c, List.of(piece));
+            Assert.isTrue(imageUtils.appendToImage(c, new ByteArrayInputStream(flag), c.getId(), 10, 20, 124, 124),
+                    "Fragment must be saved");
+            journal.commit(write, List.of(piece));
+            kept = c.getId();
+
+            Charta d = new Charta(idAllocator.next(), 100, 100);
+            imageUtils.createChartaImage(d);
+            journal.logCreate(d);
+            journal.logDelete(d.getId());
+            repository.delete(d.getId());
+            imageUtils.deleteCharta(d.getId());
+            journal.deleteApplied(d.getId());
+            deleted = d.getId();
+        }
+        // the shutdown wrote the metadata, a crash wouldn't have
+        Files.delete(WORK_DIR.resolve(kept + ".meta"));
+        Files.delete(WORK_DIR.resolve("options.json"));
+
+        try (ConfigurableApplicationContext context = start()) {
+            ChartaRepository repository = context.getBean(ChartaRepository.class);
+            Charta c = repository.findById(kept).orElse(null);
+            Assert.notNull(c, "Created charta must be recovered");
+            Assert.isTrue(c.getWidth() == 500 && c.getHeight() == 500, "Charta size must be recovered");
+            Assert.isTrue(c.getPieceCount() == 1 && c.hasFragmentInArea(10, 20, 1, 1), "Fragment must be recovered");
+            Assert.isTrue(repository.findById(deleted).isEmpty(), "Deleted charta must stay deleted");
+            Assert.isTrue(context.getBean(ChartaIdAllocator.class).next() > deleted, "Ids must not be reused");
+        }
+    }
+
+    @Test
+    public void journalRecreatesFilesLostInCrash() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/FLAG_B24.BMP"));
+
+        int id;
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), 300, 300);
+            context.getBean(ImageUtilsService.class).createChartaImage(c);
+            context.getBean(ChartaJournal.class).logCreate(c);
+            id = c.getId();
+        }
+        // only the journal reached the disk
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(WORK_DIR, id + ".*")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = context.getBean(ChartaRepository.class).findById(id).orElse(null);
+            Assert.notNull(c, "Created charta must be recovered");
+            Assert.isTrue(Files.exists(WORK_DIR.resolve(id + ".bmp")), "Pixel file must be recreated");
+            Assert.isTrue(context.getBean(ImageUtilsService.class)
+                            .appendToImage(c, new ByteArrayInputStream(flag), id, 0, 0, 124, 124),
+                    "Fragment must be saved to the recreated charta");
+        }
+    }
+
+    @Test
+    public void loggedDeleteIsCompletedAfterCrash() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+
+        int id;
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), 300, 300);
+            context.getBean(ImageUtilsService.class).createChartaImage(c);
+            ChartaJournal journal = context.getBean(ChartaJournal.class);
+            journal.logCreate(c);
+            // crashes right after the record is durable, before the files are removed
+            journal.logDelete(c.getId());
+            id = c.getId();
+        }
+        Assert.isTrue(Files.exists(WORK_DIR.resolve(id + ".bmp")), "Files must be left by the crash");
+
+        try (ConfigurableApplicationContext context = start()) {
+            Assert.isTrue(context.getBean(ChartaRepository.class).findById(id).isEmpty(), "Deleted charta must stay deleted");
+            Assert.isTrue(!Files.exists(WORK_DIR.resolve(id + ".bmp")) && !Files.exists(WORK_DIR.resolve(id + ".meta")),
+                    "Files of the deleted charta must be removed");
+        }
+    }
+
+    @Test
+    public void interruptedWritesAreRolledBack() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        byte[] red = Files.readAllBytes(Path.of("bmp_samples/RED.BMP"));
+        byte[] green = Files.readAllBytes(Path.of("bmp_samples/GRN.BMP"));
+        ImagePiece saved = new ImagePiece(200, 144, 0, 0);
+        ImagePiece blank = new ImagePiece(200, 144, 200, 200);
+
+        int id;
+        byte[] before;
+        try (ConfigurableApplicationContext context = start()) {
+            ChartaJournal journal = context.getBean(ChartaJournal.class);
+            ImageUtilsService imageUtils = context.getBean(ImageUtilsService.class);
+            Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), 400, 400);
+            imageUtils.createChartaImage(c);
+            journal.logCreate(c);
+            ChartaJournal.FragmentWrite write = journal.begin(c, List.of(saved));
+            imageUtils.appendToImage(c, new ByteArrayInputStream(red), c.getId(), 0, 0, 200, 144);
+            journal.commit(write, List.of(saved));
+            before = readArea(imageUtils, c, saved);
+
+            // crashes with both writes logged and their rows written, but neither committed
+            journal.begin(c, List.of(saved));
+            imageUtils.appendToImage(c, new ByteArrayInputStream(green), c.getId(), 0, 0, 200, 144);
+            journal.begin(c, List.of(blank));
+            imageUtils.appendToImage(c, new ByteArrayInputStream(green), c.getId(), 200, 200, 200, 144);
+            id = c.getId();
+        }
+
+        try (ConfigurableApplicationContext context = start()) {
+            ImageUtilsService imageUtils = context.getBean(ImageUtilsService.class);
+            Charta c = context.getBean(ChartaRepository.class).findById(id).orElseThrow();
+            Assert.isTrue(c.getPieceCount() == 1, "Uncommitted fragments must not be recovered");
+            Assert.isTrue(Arrays.equals(before, readArea(imageUtils, c, saved)), "Overwritten piece must be restored");
+            byte[] rows = readArea(imageUtils, c, blank);
+            for (int i = BMP_HEADER_SIZE; i < rows.length; i++) {
+                Assert.isTrue(rows[i] == 0, "Area without pieces must be black again");
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(WORK_DIR, "fragment-*.undo")) {
+                Assert.isTrue(!files.iterator().hasNext(), "Undo files must be removed");
+            }
+        }
+    }
+
+    @Test
+    public void piecesSavedAfterCheckpointAreReplayed() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/FLAG_B24.BMP"));
+
+        int id;
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), 500, 500);
+            context.getBean(ImageUtilsService.class).createChartaImage(c);
+            context.getBean(ChartaJournal.class).logCreate(c);
+            saveFragment(context, c, flag, new ImagePiece(124, 124, 0, 0));
+            id = c.getId();
+        }
+
+        Path meta = WORK_DIR.resolve(id + ".meta");
+        Path grid = WORK_DIR.resolve(id + ".grid");
+        byte[] checkpointedMeta;
+        byte[] checkpointedGrid;
+        try (ConfigurableApplicationContext context = start()) {
+            // the recovery at startup is a checkpoint
+            checkpointedMeta = Files.readAllBytes(meta);
+            checkpointedGrid = Files.readAllBytes(grid);
+            Charta c = context.getBean(ChartaRepository.class).findById(id).orElseThrow();
+            saveFragment(context, c, flag, new ImagePiece(124, 124, 300, 300));
+        }
+        // a crash before the next checkpoint leaves the metadata files as they were at the last one
+        Files.write(meta, checkpointedMeta);
+        Files.write(grid, checkpointedGrid);
+
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = context.getBean(ChartaRepository.class).findById(id).orElse(null);
+            Assert.notNull(c, "Charta must be loaded");
+            Assert.isTrue(c.getPieceCount() == 2, "Pieces must be replayed once, got " + c.getPieceCount());
+            Assert.isTrue(c.hasFragmentInArea(10, 10, 1, 1) && c.hasFragmentInArea(400, 400, 1, 1),
+                    "Pieces saved before and after the checkpoint must be loaded");
+        }
+    }
+
+    @Test
+    public void tornMetadataAppendIsIgnored() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/FLAG_B24.BMP"));
+
+        int id;
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = new Charta(context.getBean(ChartaIdAllocator.class).next(), 500, 500);
+            context.getBean(ImageUtilsService.class).createChartaImage(c);
+            context.getBean(ChartaJournal.class).logCreate(c);
+            saveFragment(context, c, flag, new ImagePiece(124, 124, 0, 0));
+            id = c.getId();
+        }
+        // a crash tore the next piece appended, after the journal that would restore the charta was checkpointed away
+        Files.write(WORK_DIR.resolve(id + ".meta"), new byte[]{1, 2, 3, 4, 5, 6, 7}, StandardOpenOption.APPEND);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(WORK_DIR, "journal-*")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = context.getBean(ChartaRepository.class).findById(id).orElse(null);
+            Assert.notNull(c, "Charta with a torn piece must be loaded");
+            Assert.isTrue(c.getPieceCount() == 1 && c.hasFragmentInArea(10, 10, 1, 1), "Torn piece must be dropped");
+            saveFragment(context, c, flag, new ImagePiece(124, 124, 300, 300));
+        }
+
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = context.getBean(ChartaRepository.class).findById(id).orElseThrow();
+            Assert.isTrue(c.getPieceCount() == 2 && c.hasFragmentInArea(400, 400, 1, 1),
+                    "Piece appended over the torn one must be loaded");
+        }
+    }
+
+    private static void saveFragment(ConfigurableApplicationContext context, Charta c, byte[] bmp, ImagePiece piece)
+            throws IOException {
+        ChartaJournal journal = context.getBean(ChartaJournal.class);
+        ChartaJournal.FragmentWrite write = journal.begin(c, List.of(piece));
+        Assert.isTrue(context.getBean(ImageUtilsService.class).appendToImage(c, new ByteArrayInputStream(bmp), c.getId(),
+                piece.getX(), piece.getY(), piece.getWidth(), piece.getHeight()), "Fragment must be saved");
+        journal.commit(write, List.of(piece));
+    }
+
+    private static byte[] readArea(ImageUtilsService imageUtils, Charta c, ImagePiece area) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        imageUtils.readFragment(c, area.getX(), area.getY(), area.getWidth(), area.getHeight(), os);
+        return os.toByteArray();
+    }
+
+    private ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(ChartographerApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.main.banner-mode=off")
+                .run(WORK_DIR.toString());
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.chartographer;
+
+import com.example.chartographer.image.Charta;
+import com.example.chartographer.image.ImagePiece;
+import com.example.chartographer.storage.ChartaRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Starts the application on a working directory holding JSON metadata of an earlier version.
+ */
+class MetadataMigrationTests {
+    private static final Path WORK_DIR = Path.of("target/metadata-migration-test");
+
+    @Test
+    public void legacyJsonIsConvertedAndAppendedTo() throws IOException {
+        FileSystemUtils.deleteRecursively(WORK_DIR);
+        Files.createDirectories(WORK_DIR);
+        Files.writeString(WORK_DIR.resolve("7.json"), "{\"id\":7,\"width\":300,\"height\":200,\"pieces\":["
+                + "{\"width\":10,\"height\":20,\"x\":5,\"y\":6},"
+                + "{\"width\":30,\"height\":40,\"x\":100,\"y\":150}]}");
+        Files.writeString(WORK_DIR.resolve("options.json"), "{\"nextId\":7}");
+
+        try (ConfigurableApplicationContext context = start()) {
+            ChartaRepository repository = context.getBean(ChartaRepository.class);
+            Charta c = repository.findById(7).orElse(null);
+            Assert.notNull(c, "Legacy charta must be loaded");
+            Assert.isTrue(c.getWidth() == 300 && c.getHeight() == 200 && c.getPieceCount() == 2, "Charta must be converted");
+            Assert.isTrue(c.hasFragmentInArea(110, 160, 1, 1) && !c.hasFragmentInArea(50, 50, 10, 10),
+                    "Pieces must be converted");
+            Assert.isTrue(Files.exists(WORK_DIR.resolve("7.meta")) && !Files.exists(WORK_DIR.resolve("7.json")),
+                    "JSON must be replaced with binary metadata");
+            Assert.isTrue(Files.exists(WORK_DIR.resolve("7.grid")), "Coverage index must be stored");
+
+            c.addPiece(new ImagePiece(50, 50, 200, 0));
+            repository.save(c);
+            repository.flush();
+        }
+
+        try (ConfigurableApplicationContext context = start()) {
+            Charta c = context.getBean(ChartaRepository.class).findById(7).orElse(null);
+            Assert.notNull(c, "Charta must be loaded from binary metadata");
+            Assert.isTrue(c.getPieceCount() == 3 && c.hasFragmentInArea(220, 10, 1, 1), "Appended piece must be loaded");
+        }
+    }
+
+    private ConfigurableApplicationContext start() {
+        return new SpringApplicationBuilder(ChartographerApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.main.banner-mode=off")
+                .run(WORK_DIR.toString());
+    }
+}
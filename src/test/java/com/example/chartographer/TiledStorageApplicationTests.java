@@ -0,0 +1,33 @@
+package com.example.chartographer;
+
+import com.example.chartographer.image.ChartaStorage;
+import com.example.chartographer.image.TiledChartaStorage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+
+/**
+ * Runs the whole API scenario against the tiled storage engine.
+ */
+@SpringBootTest(properties = "chartographer.storage.engine=tiled", args = TiledStorageApplicationTests.WORK_DIR)
+class TiledStorageApplicationTests extends ChartographerApplicationTests {
+    static final String WORK_DIR = "target/tiled-application-test";
+
+    @Autowired
+    private ChartaStorage storage;
+
+    // hides the one creating the directory of the superclass
+    @BeforeAll
+    public static void createWorkDir() throws IOException {
+        createWorkDir(WORK_DIR);
+    }
+
+    @Test
+    public void test0_tiledStorageEnabled() {
+        Assert.isInstanceOf(TiledChartaStorage.class, storage);
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.chartographer;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.util.Assert;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Load test of fragment uploads on a real server with a handful of worker threads:
+ * many clients sending their bodies slowly, or waiting for each other's rows, must not starve other requests,
+ * nor hold back the requests reading their rows.
+ * Every upload gets a single small ingest buffer, so decoding keeps stopping until the writers catch up,
+ * and two upload threads take turns on all of them.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"server.tomcat.threads.max=4", "server.tomcat.threads.min-spare=4",
+                "chartographer.ingest.buffer-count=1", "chartographer.ingest.buffer-size=4096",
+                "chartographer.upload.threads=2"},
+        args = "target/upload-concurrency-test")
+@DirtiesContext
+class UploadConcurrencyTests {
+    private static final int UPLOADS = 32;
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    @LocalServerPort
+    private int port;
+
+    @BeforeAll
+    public static void createWorkDir() throws IOException {
+        Files.createDirectories(Path.of("target/upload-concurrency-test"));
+    }
+
+    @Test
+    public void slowUploadsDontExhaustWorkerThreads() throws Exception {
+        // each upload in its own band of rows
+        int id = createCharta(500, UPLOADS * 256);
+        uploadSlowly(id, i -> i * 256);
+    }
+
+    @Test
+    public void uploadsWaitingForTheSameRowsDontExhaustWorkerThreads() throws Exception {
+        // every upload but the first waits for the write lock of the rows
+        int id = createCharta(500, 500);
+        uploadSlowly(id, i -> 0);
+    }
+
+    @Test
+    public void uploadsWaitingForTheWritersAreStoredWhole() throws Exception {
+        byte[] bmp = Files.readAllBytes(Path.of("bmp_samples/sample_1280x853.bmp"));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bmp));
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int id = createCharta(width, height * 2);
+        upload(id, 0, width, height, bmp);
+        upload(id, height, width, height, png.toByteArray());
+
+        HttpResponse<byte[]> fragment = client.send(HttpRequest.newBuilder(
+                        uri("/chartas/" + id + "?x=0&y=0&width=" + width + "&height=" + height * 2)).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        Assert.isTrue(fragment.statusCode() == 200, "Fragment must be read");
+        BufferedImage stored = ImageIO.read(new ByteArrayInputStream(fragment.body()));
+        for (int y = 0; y < height * 2; y++) {
+            for (int x = 0; x < width; x++) {
+                Assert.isTrue(stored.getRGB(x, y) == image.getRGB(x, y % height),
+                        "Pixel " + x + "," + y + " must be stored");
+            }
+        }
+    }
+
+    private void upload(int id, int y, int width, int height, byte[] body) throws Exception {
+        HttpResponse<String> saved = client.send(HttpRequest.newBuilder(
+                        uri("/chartas/" + id + "?x=0&y=" + y + "&width=" + width + "&height=" + height))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Assert.isTrue(saved.statusCode() == 200, "Upload must be saved, got " + saved.statusCode());
+    }
+
+    /**
+     * Starts every upload with half of its body, checks that the server still answers, also for the rows
+     * of the pending uploads, then sends the rest.
+     */
+    private void uploadSlowly(int id, IntUnaryOperator rowOfUpload) throws Exception {
+        byte[] flag = Files.readAllBytes(Path.of("bmp_samples/" + "FLAG_B24.BMP"));
+        // something to read in the rows of every upload
+        for (int row : IntStream.range(0, UPLOADS).map(rowOfUpload).distinct().toArray()) {
+            upload(id, row, 124, 124, flag);
+        }
+        List<Socket> uploads = new ArrayList<>();
+        try {
+            for (int i = 0; i < UPLOADS; i++) {
+                Socket socket = new Socket("localhost", port);
+                uploads.add(socket);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /chartas/" + id + "?x=0&y=" + rowOfUpload.applyAsInt(i) + "&width=124&height=124 HTTP/1.1\r\n"
+                        + "Host: localhost\r\n"
+                        + "Content-Type: application/octet-stream\r\n"
+                        + "Content-Length: " + flag.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(flag, 0, flag.length / 2);
+                out.flush();
+            }
+
+            // with blocking reads or lock waits all four worker threads would now be taken by uploads
+            HttpResponse<String> stats = client.send(HttpRequest.newBuilder(uri("/stats/ingest"))
+                    .timeout(Duration.ofSeconds(5))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            Assert.isTrue(stats.statusCode() == 200, "Server must answer while uploads are pending");
+            // the rows of an upload are only locked once its body is received
+            for (int i = 0; i < UPLOADS; i++) {
+                HttpResponse<byte[]> rows = client.send(HttpRequest.newBuilder(
+                                uri("/chartas/" + id + "?x=0&y=" + rowOfUpload.applyAsInt(i) + "&width=124&height=124"))
+                        .timeout(Duration.ofSeconds(5))
+                        .build(), HttpResponse.BodyHandlers.ofByteArray());
+                Assert.isTrue(rows.statusCode() == 200, "Rows of a pending upload must be readable, got " + rows.statusCode());
+            }
+
+            for (Socket socket : uploads) {
+                socket.getOutputStream().write(flag, flag.length / 2, flag.length - flag.length / 2);
+                socket.getOutputStream().flush();
+            }
+            for (Socket socket : uploads) {
+                socket.setSoTimeout(10000);
+                BufferedReader response = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String statusLine = response.readLine();
+                Assert.isTrue(statusLine != null && statusLine.startsWith("HTTP/1.1 200"),
+                        "Upload must be saved, got " + statusLine);
+            }
+        } finally {
+            for (Socket socket : uploads) {
+                socket.close();
+            }
+        }
+    }
+
+    private int createCharta(int width, int height) throws Exception {
+        HttpResponse<String> created = client.send(HttpRequest.newBuilder(uri("/chartas/?width=" + width + "&height=" + height))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Assert.isTrue(created.statusCode() == 201, "Charta must be created");
+        return Integer.parseInt(created.body().trim());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+}
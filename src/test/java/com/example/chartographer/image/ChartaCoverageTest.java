@@ -0,0 +1,112 @@
+package com.example.chartographer.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChartaCoverageTest {
+
+    @Test
+    public void partialCellsAreResolvedExactly() {
+        ChartaCoverage coverage = new ChartaCoverage(1000, 1000);
+        coverage.add(10, 10, 5, 5);
+        assertTrue(coverage.intersects(14, 14, 1, 1));
+        assertFalse(coverage.intersects(15, 15, 100, 100));
+        assertFalse(coverage.intersects(0, 0, 10, 1000));
+    }
+
+    @Test
+    public void fullCellsClippedByChartaEdge() {
+        ChartaCoverage coverage = new ChartaCoverage(300, 300);
+        coverage.add(256, 256, 44, 44);
+        assertTrue(coverage.intersects(299, 299, 1000, 1000));
+        assertFalse(coverage.intersects(255, 255, 1, 1));
+    }
+
+    @Test
+    public void piecesTogetherFillCell() {
+        ChartaCoverage coverage = new ChartaCoverage(300, 300);
+        for (int y = 0; y < 256; y += 8) {
+            coverage.add(0, y, 256, 8);
+        }
+        assertTrue(coverage.intersects(0, 0, 256, 256));
+        assertTrue(coverage.intersects(100, 255, 1, 1));
+        assertFalse(coverage.intersects(256, 0, 44, 256));
+    }
+
+    @Test
+    public void loadedChartaRebuildsIndex() {
+        int[] pieces = {0, 0, 10, 10, 0, 0, 600, 600, 700, 700, 5, 5};
+        Charta c = new Charta(1, 1000, 1000, pieces, 3);
+        assertTrue(c.hasFragmentInArea(599, 599, 1, 1));
+        assertTrue(c.hasFragmentInArea(704, 704, 1, 1));
+        assertFalse(c.hasFragmentInArea(600, 0, 100, 700));
+    }
+
+    @Test
+    public void storedIndexIsRestoredWithLaterPieces() {
+        Random random = new Random(11);
+        int[] pieces = new int[400 * Charta.PIECE_INTS];
+        for (int i = 0; i < pieces.length; i += Charta.PIECE_INTS) {
+            pieces[i] = random.nextInt(500);
+            pieces[i + 1] = random.nextInt(500);
+            pieces[i + 2] = 1 + random.nextInt(30);
+            pieces[i + 3] = 1 + random.nextInt(30);
+        }
+        Charta stored = new Charta(1, 530, 530, pieces, 300);
+        int[] packed = stored.packCoverage();
+        Charta built = new Charta(1, 530, 530, pieces, 400);
+        Charta restored = new Charta(1, 530, 530, pieces, 400);
+        assertTrue(restored.restoreCoverage(packed));
+        assertFalse(new Charta(1, 530, 530, pieces, 200).restoreCoverage(packed));
+        assertFalse(restored.restoreCoverage(new int[]{1, 2, 3}));
+        for (int i = 0; i < 10000; i++) {
+            int x = random.nextInt(530);
+            int y = random.nextInt(530);
+            int w = 1 + random.nextInt(40);
+            int h = 1 + random.nextInt(40);
+            assertEquals(built.hasFragmentInArea(x, y, w, h), restored.hasFragmentInArea(x, y, w, h));
+        }
+    }
+
+    @Test
+    public void denseCellsMatchLinearScan() {
+        assertMatchesLinearScan(new Random(7), 600, 600, 1000, 20, 40);
+    }
+
+    @Test
+    public void crowdedSubCellsMatchLinearScan() {
+        assertMatchesLinearScan(new Random(3), 300, 300, 5000, 6, 6);
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        assertMatchesLinearScan(new Random(42), 3000, 2000, 200, 3000, 400);
+    }
+
+    private static void assertMatchesLinearScan(Random random, int width, int height, int count,
+                                                int maxWidth, int maxHeight) {
+        ChartaCoverage coverage = new ChartaCoverage(width, height);
+        int[][] pieces = new int[count][];
+        for (int i = 0; i < pieces.length; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            pieces[i] = new int[]{x, y, 1 + random.nextInt(Math.min(maxWidth, width - x)),
+                    1 + random.nextInt(Math.min(maxHeight, height - y))};
+            coverage.add(pieces[i][0], pieces[i][1], pieces[i][2], pieces[i][3]);
+        }
+        for (int i = 0; i < 10000; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int w = 1 + random.nextInt(Math.min(300, maxWidth));
+            int h = 1 + random.nextInt(Math.min(300, maxHeight));
+            boolean expected = false;
+            for (int[] p : pieces) {
+                expected |= x + w > p[0] && x < p[0] + p[2] && y + h > p[1] && y < p[1] + p[3];
+            }
+            assertEquals(expected, coverage.intersects(x, y, w, h));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.chartographer.image;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChartaLockManagerTest {
+
+    private final ChartaLockManager lockManager = new ChartaLockManager();
+    private final Charta charta = new Charta(1, 10, 100);
+
+    ChartaLockManagerTest() {
+        ReflectionTestUtils.setField(lockManager, "bandHeight", 10);
+    }
+
+    @Test
+    public void asyncLockIsGrantedByRelease() {
+        AtomicInteger granted = new AtomicInteger();
+        ChartaLockManager.RegionLock read = lockManager.lockRead(charta, 15, 10);
+        ChartaLockManager.RegionLock write = lockManager.lockWriteAsync(charta, 0, 30, granted::incrementAndGet);
+        assertEquals(0, granted.get());
+        read.close();
+        assertEquals(1, granted.get());
+        write.close();
+        lockManager.lockWrite(charta, 0, 100).close();
+    }
+
+    @Test
+    public void disjointBandsDontWait() {
+        AtomicInteger granted = new AtomicInteger();
+        try (ChartaLockManager.RegionLock write = lockManager.lockWrite(charta, 0, 10)) {
+            lockManager.lockWriteAsync(charta, 10, 10, granted::incrementAndGet).close();
+        }
+        assertEquals(1, granted.get());
+    }
+
+    @Test
+    public void closedRequestIsWithdrawn() {
+        AtomicInteger granted = new AtomicInteger();
+        ChartaLockManager.RegionLock write = lockManager.lockWrite(charta, 20, 10);
+        ChartaLockManager.RegionLock pending = lockManager.lockWriteAsync(charta, 0, 30, granted::incrementAndGet);
+        pending.close();
+        write.close();
+        assertEquals(0, granted.get());
+        // every band the withdrawn request held or was granted later is free again
+        AtomicInteger after = new AtomicInteger();
+        lockManager.lockWriteAsync(charta, 0, 100, after::incrementAndGet).close();
+        assertEquals(1, after.get());
+    }
+
+    @Test
+    public void waitingWriteHoldsBackLaterReads() throws Exception {
+        AtomicInteger granted = new AtomicInteger();
+        ChartaLockManager.RegionLock read = lockManager.lockRead(charta, 0, 10);
+        ChartaLockManager.RegionLock write = lockManager.lockWriteAsync(charta, 0, 10, granted::incrementAndGet);
+        Thread laterRead = new Thread(() -> lockManager.lockRead(charta, 0, 10).close());
+        laterRead.start();
+        laterRead.join(200);
+        assertTrue(laterRead.isAlive());
+        read.close();
+        assertEquals(1, granted.get());
+        write.close();
+        laterRead.join(5000);
+        assertFalse(laterRead.isAlive());
+    }
+
+    @Test
+    public void emptyRangeLocksNothing() {
+        AtomicInteger granted = new AtomicInteger();
+        try (ChartaLockManager.RegionLock write = lockManager.lockWrite(charta, 0, 10)) {
+            lockManager.lockWriteAsync(charta, 0, 0, granted::incrementAndGet).close();
+            assertEquals(1, granted.get());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.chartographer.image;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectBufferPoolTest {
+
+    private final DirectBufferPool pool = new DirectBufferPool();
+
+    DirectBufferPoolTest() {
+        ReflectionTestUtils.setField(pool, "maxIdlePerClass", 2);
+        ReflectionTestUtils.setField(pool, "maxPooledBytes", 1 << 16);
+    }
+
+    @Test
+    public void releasedBufferIsReusedWithinItsClass() {
+        ByteBuffer first = pool.lease(3000);
+        assertTrue(first.isDirect());
+        assertEquals(0, first.position());
+        assertEquals(3000, first.limit());
+        pool.release(first);
+
+        ByteBuffer second = pool.lease(4000);
+        assertSame(first, second);
+        assertEquals(4000, second.limit());
+        assertEquals(2, pool.getLeases());
+        assertEquals(1, pool.getAllocations());
+        assertEquals(4096, pool.getAllocatedBytes());
+        assertEquals(1, pool.getOutstanding());
+        assertEquals(0, pool.getIdle());
+
+        ByteBuffer larger = pool.lease(5000);
+        assertNotSame(second, larger);
+        assertEquals(8192, larger.capacity());
+        pool.release(second);
+        pool.release(larger);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(2, pool.getIdle());
+    }
+
+    @Test
+    public void smallLeasesTakeTheSmallestClass() {
+        assertEquals(4096, pool.lease(1).capacity());
+        assertEquals(4096, pool.lease(0).capacity());
+    }
+
+    @Test
+    public void idleBuffersPerClassAreBounded() {
+        ByteBuffer[] leased = {pool.lease(100), pool.lease(100), pool.lease(100)};
+        for (ByteBuffer buffer : leased) {
+            pool.release(buffer);
+        }
+        assertEquals(3, pool.getAllocations());
+        assertEquals(2, pool.getIdle());
+        assertEquals(1, pool.getDiscards());
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void oversizedLeasesArentPooled() {
+        ByteBuffer buffer = pool.lease((1 << 16) + 1);
+        assertTrue(buffer.isDirect());
+        assertEquals((1 << 16) + 1, buffer.capacity());
+        assertEquals(1, pool.getOutstanding());
+        pool.release(buffer);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, pool.getIdle());
+        assertEquals(1, pool.getDiscards());
+
+        assertNotSame(buffer, pool.lease((1 << 16) + 1));
+        assertEquals(2, pool.getAllocations());
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.chartographer.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HandleCacheTest {
+
+    private final List<Handle> opened = new ArrayList<>();
+
+    @Test
+    public void reusesOpenHandle() throws Exception {
+        HandleCache<Handle> cache = new HandleCache<>(this::open, 4, Long.MAX_VALUE);
+        Charta c = new Charta(1, 10, 10);
+        try (HandleCache.Lease<Handle> first = cache.acquire(c)) {
+            try (HandleCache.Lease<Handle> second = cache.acquire(c)) {
+                assertSame(first.get(), second.get());
+            }
+        }
+        cache.acquire(c).close();
+        assertEquals(1, opened.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertFalse(opened.get(0).closed);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPastBound() throws Exception {
+        HandleCache<Handle> cache = new HandleCache<>(this::open, 2, Long.MAX_VALUE);
+        for (int id = 1; id <= 3; id++) {
+            cache.acquire(new Charta(id, 10, 10)).close();
+        }
+        assertEquals(2, cache.getOpen());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(opened.get(0).closed);
+        assertFalse(opened.get(2).closed);
+    }
+
+    @Test
+    public void leasedHandleOutlivesInvalidation() throws Exception {
+        HandleCache<Handle> cache = new HandleCache<>(this::open, 4, 0);
+        Charta c = new Charta(1, 10, 10);
+        HandleCache.Lease<Handle> lease = cache.acquire(c);
+        cache.evictIdle();
+        cache.invalidate(c.getId());
+        assertFalse(lease.get().closed);
+        lease.close();
+        assertTrue(lease.get().closed);
+        assertEquals(0, cache.getOpen());
+    }
+
+    @Test
+    public void closesIdleHandles() throws Exception {
+        HandleCache<Handle> cache = new HandleCache<>(this::open, 4, 0);
+        Charta c = new Charta(1, 10, 10);
+        cache.acquire(c).close();
+        cache.evictIdle();
+        assertTrue(opened.get(0).closed);
+        assertEquals(0, cache.getOpen());
+        try (HandleCache.Lease<Handle> lease = cache.acquire(c)) {
+            assertFalse(lease.get().closed);
+        }
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void acquireIfOpenNeverOpens() throws Exception {
+        HandleCache<Handle> cache = new HandleCache<>(this::open, 4, Long.MAX_VALUE);
+        Charta c = new Charta(1, 10, 10);
+        assertNull(cache.acquireIfOpen(c.getId()));
+        cache.acquire(c).close();
+        try (HandleCache.Lease<Handle> lease = cache.acquireIfOpen(c.getId())) {
+            assertSame(opened.get(0), lease.get());
+        }
+        cache.invalidate(c.getId());
+        assertNull(cache.acquireIfOpen(c.getId()));
+        assertEquals(1, opened.size());
+    }
+
+    private Handle open(Charta c) {
+        Handle handle = new Handle();
+        opened.add(handle);
+        return handle;
+    }
+
+    private static class Handle implements Closeable {
+        private boolean closed;
+
+        @Override
+        public void close() {
+            assertFalse(closed);
+            closed = true;
+        }
+    }
+}
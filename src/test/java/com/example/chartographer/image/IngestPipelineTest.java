@@ -0,0 +1,220 @@
+package com.example.chartographer.image;
+
+import com.example.chartographer.metrics.ChartaMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestPipelineTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 8;
+    private static final int BUFFER_COUNT = 2;
+
+    private final GatedStorage storage = new GatedStorage();
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+    private final ChartaMetrics metrics = new ChartaMetrics();
+    private final IngestPipeline pipeline = new IngestPipeline();
+    private final Charta charta = new Charta(1, WIDTH, HEIGHT);
+
+    IngestPipelineTest() {
+        ReflectionTestUtils.setField(bufferPool, "maxIdlePerClass", 32);
+        ReflectionTestUtils.setField(bufferPool, "maxPooledBytes", 1 << 20);
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(pipeline, "storage", storage);
+        ReflectionTestUtils.setField(pipeline, "bufferPool", bufferPool);
+        ReflectionTestUtils.setField(pipeline, "metrics", metrics);
+        ReflectionTestUtils.setField(pipeline, "bufferCount", BUFFER_COUNT);
+        // a buffer per row, so every row is a write of its own
+        ReflectionTestUtils.setField(pipeline, "bufferSize", WIDTH * 3);
+        ReflectionTestUtils.setField(pipeline, "writerThreads", 1);
+        ReflectionTestUtils.invokeMethod(pipeline, "start");
+    }
+
+    @AfterEach
+    public void stop() {
+        storage.gate.release(HEIGHT);
+        ReflectionTestUtils.invokeMethod(pipeline, "stop");
+    }
+
+    @Test
+    public void offerStallsUntilWritable() throws Exception {
+        IngestPipeline.Upload upload = pipeline.open(charta, 0, WIDTH);
+        FragmentDecoder decoder = decoder(upload);
+        ByteBuffer body = ByteBuffer.wrap(bmp());
+
+        assertTrue(decoder.offer(body));
+        assertTrue(decoder.isStalled());
+        assertTrue(body.hasRemaining());
+        assertFalse(upload.hasFreeBuffer());
+
+        CountDownLatch writable = new CountDownLatch(1);
+        decoder.whenWritable(writable::countDown);
+        assertEquals(1, writable.getCount());
+        storage.gate.release();
+        assertTrue(writable.await(5, TimeUnit.SECONDS));
+        assertTrue(upload.hasFreeBuffer());
+        assertEquals(1, pipeline.getBackpressureWaits());
+
+        storage.gate.release(HEIGHT);
+        while (!decoder.isComplete()) {
+            assertTrue(decoder.offer(body));
+            if (decoder.isStalled()) {
+                CountDownLatch resumed = new CountDownLatch(1);
+                decoder.whenWritable(resumed::countDown);
+                assertTrue(resumed.await(5, TimeUnit.SECONDS));
+            }
+        }
+        upload.finish();
+        assertRowsStored();
+        decoder.close();
+        assertEquals(0, bufferPool.getOutstanding());
+    }
+
+    @Test
+    public void feedWaitsWhileEveryBufferIsWritten() throws Exception {
+        IngestPipeline.Upload upload = pipeline.open(charta, 0, WIDTH);
+        FragmentDecoder decoder = decoder(upload);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> fed = reader.submit(() -> decoder.feed(ByteBuffer.wrap(bmp())));
+            assertThrows(TimeoutException.class, () -> fed.get(200, TimeUnit.MILLISECONDS));
+            // the ring doesn't grow while the writer is stuck
+            assertEquals(BUFFER_COUNT, bufferPool.getAllocations());
+            assertEquals(BUFFER_COUNT, bufferPool.getOutstanding());
+            assertTrue(storage.rows.isEmpty());
+
+            storage.gate.release(HEIGHT);
+            assertTrue(fed.get(5, TimeUnit.SECONDS));
+        } finally {
+            reader.shutdownNow();
+        }
+        upload.finish();
+        assertRowsStored();
+        assertTrue(pipeline.getBackpressureWaits() > 0);
+        decoder.close();
+        assertEquals(0, bufferPool.getOutstanding());
+        assertEquals(BUFFER_COUNT, bufferPool.getIdle());
+    }
+
+    @Test
+    public void closeReturnsBuffersOfFailedUpload() throws Exception {
+        storage.failing = true;
+        storage.gate.release(HEIGHT);
+        IngestPipeline.Upload upload = pipeline.open(charta, 0, WIDTH);
+        FragmentDecoder decoder = decoder(upload);
+
+        assertThrows(IOException.class, () -> {
+            decoder.feed(ByteBuffer.wrap(bmp()));
+            upload.finish();
+        });
+        decoder.close();
+        assertEquals(0, bufferPool.getOutstanding());
+        assertEquals(bufferPool.getAllocations(), bufferPool.getIdle());
+    }
+
+    @Test
+    public void closeReturnsBuffersOfAbandonedUpload() throws Exception {
+        IngestPipeline.Upload upload = pipeline.open(charta, 0, WIDTH);
+        FragmentDecoder decoder = decoder(upload);
+        assertTrue(decoder.offer(ByteBuffer.wrap(bmp(), 0, 54 + WIDTH * 3 * (BUFFER_COUNT + 1))));
+        assertTrue(decoder.isStalled());
+
+        // the client went away, close waits for the rows being written
+        storage.gate.release(HEIGHT);
+        decoder.close();
+        assertEquals(BUFFER_COUNT, storage.rows.size());
+        assertEquals(0, bufferPool.getOutstanding());
+        assertEquals(BUFFER_COUNT, bufferPool.getIdle());
+    }
+
+    /**
+     * Decodes into the pipeline only; previews are left alone, so the rows are awaited through the upload.
+     */
+    private FragmentDecoder decoder(IngestPipeline.Upload upload) {
+        return new FragmentDecoder(charta, 0, 0, WIDTH, HEIGHT, upload, null, metrics);
+    }
+
+    private void assertRowsStored() {
+        assertEquals(HEIGHT, storage.rows.size());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (byte b : storage.rows.get(y)) {
+                assertEquals(y, b);
+            }
+        }
+    }
+
+    /**
+     * Top-down 24-bit BMP whose row {@code y} holds bytes of value {@code y}.
+     */
+    private static byte[] bmp() {
+        int rowSize = WIDTH * 3;
+        ByteBuffer bmp = ByteBuffer.allocate(54 + rowSize * HEIGHT).order(ByteOrder.LITTLE_ENDIAN);
+        bmp.put((byte) 'B').put((byte) 'M').putInt(bmp.capacity()).putInt(0).putInt(54)
+                .putInt(40).putInt(WIDTH).putInt(-HEIGHT).putShort((short) 1).putShort((short) 24)
+                .putInt(0).putInt(rowSize * HEIGHT).putInt(0).putInt(0).putInt(0).putInt(0);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int i = 0; i < rowSize; i++) {
+                bmp.put((byte) y);
+            }
+        }
+        return bmp.array();
+    }
+
+    /**
+     * Keeps written rows in memory, each write waiting for a permit of the gate.
+     */
+    private static final class GatedStorage implements ChartaStorage {
+        private final Semaphore gate = new Semaphore(0);
+        private final Map<Integer, byte[]> rows = new ConcurrentHashMap<>();
+        private volatile boolean failing;
+
+        @Override
+        public void create(Charta c) {
+        }
+
+        @Override
+        public boolean exists(int id) {
+            return true;
+        }
+
+        @Override
+        public void writeRow(Charta c, int y, int x, ByteBuffer src) throws IOException {
+            gate.acquireUninterruptibly();
+            if (failing) {
+                throw new IOException("Disk full");
+            }
+            byte[] row = new byte[src.remaining()];
+            src.get(row);
+            rows.put(y, row);
+        }
+
+        @Override
+        public void readRow(Charta c, int y, int x, ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(Charta c) {
+        }
+
+        @Override
+        public void delete(int id) {
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.chartographer.web.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FragmentCacheTest {
+
+    private final FragmentCache cache = new FragmentCache();
+
+    FragmentCacheTest() {
+        ReflectionTestUtils.setField(cache, "maxBytes", 30L);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", 30L);
+    }
+
+    @Test
+    public void invalidationDropsOverlappingEntriesOfTheChartaOnly() {
+        FragmentCache.Key left = new FragmentCache.Key(1, 0, 0, 10, 10);
+        FragmentCache.Key right = new FragmentCache.Key(1, 20, 0, 10, 10);
+        FragmentCache.Key other = new FragmentCache.Key(2, 0, 0, 10, 10);
+        cache.put(left, new byte[5]);
+        cache.put(right, new byte[5]);
+        cache.put(other, new byte[5]);
+
+        cache.invalidate(1, 5, 5, 10, 10);
+        assertNull(cache.get(left));
+        assertNotNull(cache.get(right));
+        assertNotNull(cache.get(other));
+        assertEquals(10, cache.getStats().getBytes());
+
+        cache.invalidate(1);
+        assertNull(cache.get(right));
+        assertNotNull(cache.get(other));
+        assertEquals(1, cache.getStats().getEntries());
+        assertEquals(5, cache.getStats().getBytes());
+    }
+
+    @Test
+    public void evictedEntriesLeaveTheIndex() {
+        FragmentCache.Key first = new FragmentCache.Key(1, 0, 0, 10, 10);
+        FragmentCache.Key second = new FragmentCache.Key(1, 10, 0, 10, 10);
+        cache.put(first, new byte[20]);
+        cache.put(second, new byte[20]);
+        assertEquals(1, cache.getStats().getEvictions());
+        assertNull(cache.get(first));
+
+        cache.invalidate(1);
+        assertEquals(0, cache.getStats().getEntries());
+        assertEquals(0, cache.getStats().getBytes());
+
+        // a replaced entry is indexed once
+        cache.put(first, new byte[10]);
+        cache.put(first, new byte[15]);
+        cache.invalidate(1);
+        assertEquals(0, cache.getStats().getBytes());
+    }
+}